@@ -0,0 +1,215 @@
+package beast.evolution.tree;
+
+import java.util.Arrays;
+
+/**
+ * An order statistic index of node numbers keyed by a height, used by SRTree to count and sample the nodes with a key
+ * above a given height in O(log n) expected time without allocating.
+ *
+ * The index is a treap stored in arrays indexed by node number, every node can be in the index at most once.
+ * Priorities are a fixed hash of the node number, so the shape of the treap only depends on the set of keys and
+ * removing and re-inserting nodes brings back exactly the same treap. No random numbers are drawn.
+ */
+final class HeightIndex {
+
+    private static final int NIL = -1;
+
+    private int[] left;
+    private int[] right;
+    private int[] size;
+    private double[] key;
+    private boolean[] contains;
+    private int root = NIL;
+
+    // results of split()
+    private int splitLeft, splitRight;
+
+    HeightIndex(int capacity) {
+        left = new int[capacity];
+        right = new int[capacity];
+        size = new int[capacity];
+        key = new double[capacity];
+        contains = new boolean[capacity];
+    }
+
+    void clear() {
+        root = NIL;
+        Arrays.fill(contains, false);
+    }
+
+    int capacity() {
+        return contains.length;
+    }
+
+    boolean contains(int nodeNr) {
+        return contains[nodeNr];
+    }
+
+    double getKey(int nodeNr) {
+        return key[nodeNr];
+    }
+
+    /**
+     * @return the number of nodes in the index
+     */
+    int size() {
+        return root == NIL ? 0 : size[root];
+    }
+
+    /**
+     * Puts the node in the index with the given key, or removes it if present is false.
+     */
+    void set(int nodeNr, boolean present, double height) {
+        if (contains[nodeNr]) {
+            if (present && key[nodeNr] == height) {
+                return;
+            }
+            root = remove(root, nodeNr);
+            contains[nodeNr] = false;
+        }
+        if (present) {
+            key[nodeNr] = height;
+            left[nodeNr] = NIL;
+            right[nodeNr] = NIL;
+            size[nodeNr] = 1;
+            root = insert(root, nodeNr);
+            contains[nodeNr] = true;
+        }
+    }
+
+    /**
+     * @return the number of nodes with a key strictly greater than height
+     */
+    int countAbove(double height) {
+        int count = 0;
+        int t = root;
+        while (t != NIL) {
+            if (key[t] > height) {
+                count += 1 + size(right[t]);
+                t = left[t];
+            } else {
+                t = right[t];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param height the height
+     * @param k index between 0 and countAbove(height)-1
+     * @return the k-th node with a key strictly greater than height, in the order of the keys
+     */
+    int getNodeNrAbove(double height, int k) {
+        return select(size() - countAbove(height) + k);
+    }
+
+    private int select(int rank) {
+        int t = root;
+        while (true) {
+            int leftSize = size(left[t]);
+            if (rank < leftSize) {
+                t = left[t];
+            } else if (rank == leftSize) {
+                return t;
+            } else {
+                rank -= leftSize + 1;
+                t = right[t];
+            }
+        }
+    }
+
+    private int size(int t) {
+        return t == NIL ? 0 : size[t];
+    }
+
+    private void update(int t) {
+        size[t] = 1 + size(left[t]) + size(right[t]);
+    }
+
+    /**
+     * orders the nodes by key and then by node number
+     */
+    private boolean less(int a, int b) {
+        return key[a] < key[b] || (key[a] == key[b] && a < b);
+    }
+
+    private static int priority(int nodeNr) {
+        // a bijective integer hash, so that different nodes have different priorities
+        int h = nodeNr * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private int insert(int t, int nodeNr) {
+        if (t == NIL) {
+            return nodeNr;
+        }
+        if (priority(nodeNr) > priority(t)) {
+            split(t, nodeNr);
+            left[nodeNr] = splitLeft;
+            right[nodeNr] = splitRight;
+            update(nodeNr);
+            return nodeNr;
+        }
+        if (less(nodeNr, t)) {
+            left[t] = insert(left[t], nodeNr);
+        } else {
+            right[t] = insert(right[t], nodeNr);
+        }
+        update(t);
+        return t;
+    }
+
+    /**
+     * splits the treap t into the nodes less than nodeNr (splitLeft) and greater than nodeNr (splitRight)
+     */
+    private void split(int t, int nodeNr) {
+        if (t == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+        } else if (less(t, nodeNr)) {
+            split(right[t], nodeNr);
+            right[t] = splitLeft;
+            update(t);
+            splitLeft = t;
+        } else {
+            split(left[t], nodeNr);
+            left[t] = splitRight;
+            update(t);
+            splitRight = t;
+        }
+    }
+
+    private int remove(int t, int nodeNr) {
+        if (t == nodeNr) {
+            return merge(left[t], right[t]);
+        }
+        if (less(nodeNr, t)) {
+            left[t] = remove(left[t], nodeNr);
+        } else {
+            right[t] = remove(right[t], nodeNr);
+        }
+        update(t);
+        return t;
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) {
+            return b;
+        }
+        if (b == NIL) {
+            return a;
+        }
+        if (priority(a) > priority(b)) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        } else {
+            left[b] = merge(a, left[b]);
+            update(b);
+            return b;
+        }
+    }
+}
@@ -95,6 +95,7 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
         setNodesNrs(root, 0, new int[1], taxonToNR);
 
         initArrays();
+        initSRanges();
 
         if (m_initial.get() != null) {
             m_initial.get().assignFromWithoutID(this);
@@ -177,14 +178,22 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
 
     private Node simulateCoalescent(final Set<Node> candidates, final PopulationFunction demoFunction) {
         final List<Node> remainingCandidates = new ArrayList<>();
-        List<Node> newNodes = new ArrayList<>();
-        List<String> firstOccurrenceTaxonNames = new ArrayList<>();
+        // the range of every taxon that occurs in a range, a taxon is matched to the first range that contains it
+        final Map<String, StratigraphicRange> rangesByTaxonName = new HashMap<>();
+        // the nodes created for the first occurrences, by the name of the first occurrence
+        final Map<String, Node> newNodes = new HashMap<>();
         List<Node> lastOccurrenceNodes = new ArrayList<>();
 
+        // the input ranges are shared with the initialised tree, so they are only read here
+        List<StratigraphicRange> inputRanges = stratigraphicRangeInput.get();
+        for (StratigraphicRange range:inputRanges) {
+            rangesByTaxonName.putIfAbsent(range.getFirstOccurrenceID(), range);
+            rangesByTaxonName.putIfAbsent(range.getLastOccurrenceID(), range);
+        }
+
         for(Node node:candidates) {
             String taxonName = node.getID();
-            sRanges= (ArrayList) stratigraphicRangeInput.get();
-            StratigraphicRange range = sRangesContainsID(taxonName);
+            StratigraphicRange range = rangesByTaxonName.get(taxonName);
             if (range != null && !range.isSingleFossilRange()) {
                 if (range.getFirstOccurrenceID().equals(taxonName)) {
                         final Node newNode = newNode();
@@ -192,28 +201,25 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
                         newNode.setNr(nextNodeNr++);
                         newNode.setLeft(node);
                         node.setParent(newNode);
-                        newNodes.add(newNode);
+                        newNodes.put(taxonName, newNode);
                         remainingCandidates.add(newNode);
 
                 } else {
                     lastOccurrenceNodes.add(node);
-                    firstOccurrenceTaxonNames.add(range.getFirstOccurrenceID());
                 }
             } else {
                 remainingCandidates.add(node);
             }
         }
 
-        for (int i=0; i< lastOccurrenceNodes.size(); i++) {
-            Node lastOccurrenceNode = lastOccurrenceNodes.get(i);
-            for (Node node:newNodes) {
-                if (node.getLeft().getID().equals(firstOccurrenceTaxonNames.get(i))){
-                    Node firstOccur = node.getLeft();
-                    node.setLeft(lastOccurrenceNode);
-                    lastOccurrenceNode.setParent(node);
-                    node.setRight(firstOccur);
-                    candidates.remove(lastOccurrenceNode);
-                }
+        for (Node lastOccurrenceNode:lastOccurrenceNodes) {
+            Node node = newNodes.get(rangesByTaxonName.get(lastOccurrenceNode.getID()).getFirstOccurrenceID());
+            if (node != null) {
+                Node firstOccur = node.getLeft();
+                node.setLeft(lastOccurrenceNode);
+                lastOccurrenceNode.setParent(node);
+                node.setRight(firstOccur);
+                candidates.remove(lastOccurrenceNode);
             }
         }
 
@@ -243,12 +249,18 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
         final int[] indices = new int[nodes.size()];
         HeapSort.sort(heights, indices);
 
-        // node list
-        nodeList.clear();
-        activeNodeCount = 0;
+        // inactive nodes in the order of their heights
+        inactiveNodes = new Node[nodes.size()];
         for (int i = 0; i < nodes.size(); i++) {
-            nodeList.add(nodes.get(indices[i]));
+            inactiveNodes[i] = nodes.get(indices[i]);
         }
+        nextInactiveNode = 0;
+
+        // every node becomes active once and every coalescence adds one active node
+        activeNodes = new Node[2 * nodes.size()];
+        activeNodeTree = new int[activeNodes.length + 1];
+        activeSlotCount = 0;
+        activeNodeCount = 0;
         setCurrentHeight(currentHeight);
 
         // get at least two tips
@@ -261,7 +273,7 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
         double nextCoalescentHeight = currentHeight
                 + PopulationFunction.Utils.getSimulatedInterval(demographic, getActiveNodeCount(), currentHeight);
 
-        while ((nodeList.size() > 1)) {
+        while (getLineageCount() > 1) {
 
             if (nextCoalescentHeight >= getMinimumInactiveHeight()) {
                 currentHeight = getMinimumInactiveHeight();
@@ -270,7 +282,7 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
                 currentHeight = coalesceTwoActiveNodes(nextCoalescentHeight);
             }
 
-            if (nodeList.size() > 1) {
+            if (getLineageCount() > 1) {
                 // get at least two tips
                 while (getActiveNodeCount() < 2) {
                     currentHeight = getMinimumInactiveHeight();
@@ -282,6 +294,13 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
             }
         }
 
+        final List<Node> nodeList = new ArrayList<>();
+        for (int k = 0; k < activeNodeCount; k++) {
+            nodeList.add(getActiveNode(k));
+        }
+        for (int i = nextInactiveNode; i < inactiveNodes.length; i++) {
+            nodeList.add(inactiveNodes[i]);
+        }
         return nodeList;
     }
 
@@ -289,8 +308,8 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
      * @return the height of youngest inactive node.
      */
     private double getMinimumInactiveHeight() {
-        if (activeNodeCount < nodeList.size()) {
-            return (nodeList.get(activeNodeCount)).getHeight();
+        if (nextInactiveNode < inactiveNodes.length) {
+            return inactiveNodes[nextInactiveNode].getHeight();
         } else
             return Double.POSITIVE_INFINITY;
     }
@@ -301,7 +320,8 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
      */
     private void setCurrentHeight(final double height) {
         while (getMinimumInactiveHeight() <= height) {
-            activeNodeCount += 1;
+            addActiveNode(inactiveNodes[nextInactiveNode]);
+            nextInactiveNode += 1;
         }
     }
 
@@ -312,6 +332,13 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
         return activeNodeCount;
     }
 
+    /**
+     * @return the number of active and inactive nodes
+     */
+    private int getLineageCount() {
+        return activeNodeCount + inactiveNodes.length - nextInactiveNode;
+    }
+
 
     /**
      * Coalesce two nodes in the active list. This method removes the two
@@ -327,8 +354,10 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
             node2 = Randomizer.nextInt(activeNodeCount);
         }
 
-        final Node left = nodeList.get(node1);
-        final Node right = nodeList.get(node2);
+        final int leftSlot = getActiveSlot(node1);
+        final int rightSlot = getActiveSlot(node2);
+        final Node left = activeNodes[leftSlot];
+        final Node right = activeNodes[rightSlot];
 
         final Node newNode = newNode();
         newNode.setNr(nextNodeNr++);   // multiple tries may generate an excess of nodes assert(nextNodeNr <= nrOfTaxa*2-1);
@@ -338,14 +367,9 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
         newNode.setRight(right);
         right.setParent(newNode);
 
-        nodeList.remove(left);
-        nodeList.remove(right);
-
-        activeNodeCount -= 2;
-
-        nodeList.add(activeNodeCount, newNode);
-
-        activeNodeCount += 1;
+        removeActiveNode(leftSlot);
+        removeActiveNode(rightSlot);
+        addActiveNode(newNode);
 
         if (getMinimumInactiveHeight() < height) {
             throw new RuntimeException(
@@ -355,8 +379,58 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
         return height;
     }
 
+    /**
+     * The active nodes are kept in the order in which they became active, the k-th active node is the one that
+     * the list based coalescent would have at position k, so that the same random numbers give the same tree.
+     * Nodes are never moved, removed nodes leave an empty slot and a Fenwick tree over the occupied slots finds
+     * the k-th active node in O(log n).
+     */
+    private void addActiveNode(Node node) {
+        activeNodes[activeSlotCount] = node;
+        updateActiveNodeTree(activeSlotCount, 1);
+        activeSlotCount += 1;
+        activeNodeCount += 1;
+    }
+
+    private void removeActiveNode(int slot) {
+        activeNodes[slot] = null;
+        updateActiveNodeTree(slot, -1);
+        activeNodeCount -= 1;
+    }
+
+    private Node getActiveNode(int k) {
+        return activeNodes[getActiveSlot(k)];
+    }
+
+    private void updateActiveNodeTree(int slot, int delta) {
+        for (int i = slot + 1; i < activeNodeTree.length; i += i & -i) {
+            activeNodeTree[i] += delta;
+        }
+    }
+
+    /**
+     * @return the slot of the k-th active node
+     */
+    private int getActiveSlot(int k) {
+        int i = 0;
+        for (int step = Integer.highestOneBit(activeNodeTree.length - 1); step > 0; step >>= 1) {
+            if (i + step < activeNodeTree.length && activeNodeTree[i + step] <= k) {
+                i += step;
+                k -= activeNodeTree[i];
+            }
+        }
+        return i;
+    }
+
+
+    // inactive nodes ordered by height and the position of the next one to become active
+    private Node[] inactiveNodes;
+    private int nextInactiveNode = 0;
 
-    final private ArrayList<Node> nodeList = new ArrayList<>();
+    // active nodes by slot, the Fenwick tree over the occupied slots and the number of slots used
+    private Node[] activeNodes;
+    private int[] activeNodeTree;
+    private int activeSlotCount = 0;
     private int activeNodeCount = 0;
 
 }
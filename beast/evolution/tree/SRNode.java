@@ -25,6 +25,96 @@ public class SRNode extends Node {
         return node;
     } // copy
 
+    @Override
+    public void setHeight(final double height) {
+        boolean wasFake = isFakeInTree();
+        boolean wasParentFake = isParentFakeInTree();
+        super.setHeight(height);
+        notifyTree(true);
+        notifyTreeOfFakeChanges(wasFake, wasParentFake);
+    }
+
+    @Override
+    public int scale(final double scale) {
+        boolean wasFake = isFakeInTree();
+        boolean wasParentFake = isParentFakeInTree();
+        int dof = super.scale(scale);
+        notifyTree(true);
+        notifyTreeOfFakeChanges(wasFake, wasParentFake);
+        return dof;
+    }
+
+    @Override
+    public void setParent(final Node parent) {
+        super.setParent(parent);
+        notifyTree(false);
+    }
+
+    @Override
+    public void setLeft(final Node leftChild) {
+        super.setLeft(leftChild);
+        notifyTree(false);
+    }
+
+    @Override
+    public void setRight(final Node rightChild) {
+        super.setRight(rightChild);
+        notifyTree(false);
+    }
+
+    @Override
+    public void addChild(final Node child) {
+        super.addChild(child);
+        notifyTree(false);
+    }
+
+    @Override
+    public void removeChild(final Node child) {
+        super.removeChild(child);
+        notifyTree(false);
+    }
+
+    @Override
+    public void makeDirty(final int dirty) {
+        super.makeDirty(dirty);
+        if (m_tree instanceof SRTree) {
+            ((SRTree) m_tree).nodeMadeDirty(this);
+        }
+    }
+
+    /**
+     * lets the tree update its leaf and height indexes after the node changed
+     * @param heightChanged whether the height of the node changed, which affects the branches to the children
+     */
+    private void notifyTree(boolean heightChanged) {
+        if (m_tree instanceof SRTree) {
+            ((SRTree) m_tree).nodeChanged(this, heightChanged);
+        }
+    }
+
+    private boolean isFakeInTree() {
+        return m_tree instanceof SRTree && SRTree.isFakeNode(this);
+    }
+
+    private boolean isParentFakeInTree() {
+        return m_tree instanceof SRTree && parent != null && SRTree.isFakeNode(parent);
+    }
+
+    /**
+     * lets the tree update its ancestral range index if a height change made this node or its parent become or stop
+     * being a fake node
+     */
+    private void notifyTreeOfFakeChanges(boolean wasFake, boolean wasParentFake) {
+        if (m_tree instanceof SRTree) {
+            if (isFakeInTree() != wasFake) {
+                ((SRTree) m_tree).fakeNodeChanged(this);
+            }
+            if (isParentFakeInTree() != wasParentFake) {
+                ((SRTree) m_tree).fakeNodeChanged(parent);
+            }
+        }
+    }
+
     @Override
     public int sort()  {
         throw new RuntimeException("Do not sort ordered trees. Calculation stopped.");
@@ -3,12 +3,26 @@ package beast.evolution.tree;
 import beast.core.Input;
 import beast.core.StateNode;
 import beast.core.StateNodeInitialiser;
+import sranges.PerformanceCounter;
 import sranges.StratigraphicRange;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
 
 /**
  * @author Alexandra Gavryushkina
@@ -29,6 +43,130 @@ public class SRTree extends Tree {
     protected ArrayList<StratigraphicRange> sRanges;
     protected ArrayList<StratigraphicRange> storedSRanges;
 
+    /**
+     * Node to range index: for the node with number i, nodeSRangeNrs[i] is the number of the range (its position in
+     * sRanges) the node belongs to or -1 if it does not belong to any range, and nodeSRangePositions[i] is the
+     * position of the node in the list of nodes of that range. The index is kept up to date by the ranges.
+     */
+    protected int[] nodeSRangeNrs;
+    protected int[] nodeSRangePositions;
+
+    /**
+     * Numbers of the nodes that joined or left a range since the last store() or restore(), so that calculation
+     * nodes caching range dependent terms know what to recalculate. sRangesInitCount is increased every time the
+     * ranges are rebuilt from scratch.
+     */
+    protected int[] sRangeChangedNodeNrs;
+    protected boolean[] isSRangeChangedNode;
+    protected int sRangeChangedNodeCount;
+    protected int sRangesInitCount = 0;
+
+    /**
+     * Change notification: structureVersion is increased every time the parent or the children of a node or the
+     * nodes of a range change and heightVersion every time the height of a node changes, restore() increases them if
+     * it undoes such changes, so that a cache built on the tree is up to date while they are unchanged.
+     * structureChangedNodeNrs holds the nodes whose parent, children, range or position in their range changed since
+     * the last store() or restore().
+     */
+    private long structureVersion = 0;
+    private long heightVersion = 0;
+    private boolean structureChangedSinceStore = false;
+    private boolean heightChangedSinceStore = false;
+    private int[] structureChangedNodeNrs;
+    private boolean[] isStructureChangedNode;
+    private int structureChangedNodeCount;
+
+    /**
+     * Store/restore journal. changedNodeNrs holds the nodes whose height, parent or children may differ from their
+     * stored copies: store() copies only these nodes, restore() swaps the node arrays and keeps them in the journal
+     * since the arrays differ exactly there. dirtyNodeNrs holds the nodes whose isDirty flag may be set.
+     * changedSRangeNrs holds the ranges changed since the last store(), restore() copies them back from the stored
+     * ranges. The node journal is not valid after the tree is reinitialised, the next store() then copies all nodes.
+     */
+    private int[] changedNodeNrs;
+    private boolean[] isChangedNode;
+    private int changedNodeCount;
+    private int[] dirtyNodeNrs;
+    private boolean[] isDirtyNode;
+    private int dirtyNodeCount;
+    private boolean allNodesDirty = true;
+    private boolean nodeJournalValid = false;
+    private int storedLeafNodeCount;
+    private int[] changedSRangeNrs;
+    private boolean[] isChangedSRange;
+    private int changedSRangeCount;
+
+    /**
+     * Indexed set of the nodes that can be pruned and reattached by SRWilsonBalding: nodes that are not the root, are
+     * not sampled ancestors on zero branches and are not internal nodes of a range. The first movableNodeCount
+     * entries of movableNodeNrs are the node numbers, movableNodePositions[i] is the slot of node i in movableNodeNrs
+     * or -1. The set is rebuilt lazily after the tree is reinitialised, between rebuilds operators keep it up to date
+     * with updateMovableNode(int). restore() re-evaluates the nodes whose status changed since the last store().
+     */
+    protected int[] movableNodeNrs;
+    protected int[] movableNodePositions;
+    protected int movableNodeCount;
+    protected boolean movableNodesValid = false;
+    private boolean movableNodesBuiltSinceStore = false;
+    private int[] movableChangedNodeNrs;
+    private boolean[] isMovableChangedNode;
+    private int movableChangedNodeCount;
+
+    /**
+     * Leaf index: the first leafNodeNrCount entries of leafNodeNrs are the numbers of the leaves in ascending order,
+     * leafSlots[i] is the slot of node i in leafNodeNrs or -1 if the node is not a leaf. SRNode reports changes of
+     * children, the index is rebuilt lazily when the leaf status of a node changed or after restore() undid such a
+     * change.
+     */
+    protected int[] leafNodeNrs;
+    protected int[] leafSlots;
+    protected int leafNodeNrCount;
+    protected boolean leafNodesValid = false;
+    protected boolean leafNodesChangedSinceStore = false;
+
+    /**
+     * Height indexes of the targets SRWilsonBalding can attach a pruned subtree to: attachmentEdges holds every node
+     * that is not a sampled ancestor on a zero branch keyed by the height of its parent (infinity for the root), and
+     * attachmentLeaves holds every leaf that is not a sampled ancestor keyed by its height. SRNode reports changes
+     * of heights, parents and children, and the state of every node changed since the last store() is journalled
+     * so that restore() can undo it. The indexes are rebuilt lazily after the tree is reinitialised.
+     */
+    private HeightIndex attachmentEdges;
+    private HeightIndex attachmentLeaves;
+    private boolean attachmentIndexValid = false;
+    private boolean attachmentIndexBuiltSinceStore = false;
+    private int[] attachmentChangedNodeNrs;
+    private boolean[] isAttachmentChangedNode;
+    private int attachmentChangedNodeCount;
+    private boolean[] storedInAttachmentEdges;
+    private double[] storedAttachmentEdgeKeys;
+    private boolean[] storedInAttachmentLeaves;
+    private double[] storedAttachmentLeafKeys;
+
+    /**
+     * Ancestral range index: ancestralSRangeLastNodeNrs[k] is the number of the fake node that ends the range range k
+     * buds off from, found by climbing from the first node of range k along left children, or -1 if the climb reaches
+     * the root or a right child first. SRNode reports changes of parents, children and fake nodes, the entries of the
+     * ranges whose climb can pass through a changed node become stale and are recalculated lazily. The entries that
+     * became stale since the last store() become stale again on restore(). The index is rebuilt lazily after the tree
+     * is reinitialised.
+     */
+    private int[] ancestralSRangeLastNodeNrs;
+    private boolean ancestralSRangesValid = false;
+    private boolean ancestralSRangesBuiltSinceStore = false;
+    private int[] staleAncestralSRangeNrs;
+    private boolean[] isStaleAncestralSRange;
+    private int staleAncestralSRangeCount;
+    private int[] ancestralChangedSRangeNrs;
+    private boolean[] isAncestralChangedSRange;
+    private int ancestralChangedSRangeCount;
+
+    /**
+     * count and time the store() and restore() calls when set by a PerformanceLogger, null otherwise
+     */
+    private PerformanceCounter storeCounter = null;
+    private PerformanceCounter restoreCounter = null;
+
     @Override
     public void initAndValidate() {
         if (treeInput.get() != null) {
@@ -37,36 +175,51 @@ public class SRTree extends Tree {
         super.initAndValidate();
     }
 
+    public void setPerformanceCounters(PerformanceCounter storeCounter, PerformanceCounter restoreCounter) {
+        this.storeCounter = storeCounter;
+        this.restoreCounter = restoreCounter;
+    }
+
     protected void initSRanges() {
+        initSRangeIndex();
         if (stratigraphicRangeInput.get() != null) {
-            sRanges = (ArrayList) stratigraphicRangeInput.get();
-            List<Node> externalNodes = getExternalNodes();
+            // the input ranges can be shared with other trees, for example with the initialiser of this tree, and a
+            // range notifies a single tree of its changes, so every tree works on copies
+            sRanges = new ArrayList<>();
+            for (StratigraphicRange inputRange : stratigraphicRangeInput.get()) {
+                StratigraphicRange range = inputRange.copy();
+                range.setTree(this, sRanges.size());
+                sRanges.add(range);
+            }
+            Map<String, Node> leavesByID = getExternalNodesByID();
             for (StratigraphicRange range:sRanges) {
                 range.removeAllNodeNrs();
-                for (Node node:externalNodes) {
-                    if(node.getID().equals(range.getFirstOccurrenceID()) && !range.isSingleFossilRange()) {
-                        if (!node.isDirectAncestor()) {
-                            throw new RuntimeException("The first occurrence always has to be a sampled ancestor but " +
-                                    range.getFirstOccurrenceID() + " is not a sampled ancestor. Something went wrong in " +
-                                    "initializing the stratigraphic range tree."  );
-                        }
-                        range.setFirstOccurrenceNodeNr(node.getParent().getNr());
+                Node node = leavesByID.get(range.getFirstOccurrenceID());
+                if (node != null && !range.isSingleFossilRange()) {
+                    if (!node.isDirectAncestor()) {
+                        throw new RuntimeException("The first occurrence always has to be a sampled ancestor but " +
+                                range.getFirstOccurrenceID() + " is not a sampled ancestor. Something went wrong in " +
+                                "initializing the stratigraphic range tree."  );
                     }
-                    if (node.getID().equals(range.getLastOccurrenceID())) {
-                        if (node.isDirectAncestor()) {
-                            range.setLastOccurrenceNodeNr(node.getParent().getNr());
-                        } else {
-                            range.setLastOccurrenceNodeNr(node.getNr());
-                        }
+                    range.setFirstOccurrenceNodeNr(node.getParent().getNr());
+                }
+                node = leavesByID.get(range.getLastOccurrenceID());
+                if (node != null) {
+                    if (node.isDirectAncestor()) {
+                        range.setLastOccurrenceNodeNr(node.getParent().getNr());
+                    } else {
+                        range.setLastOccurrenceNodeNr(node.getNr());
                     }
                 }
                 range.initAndValidate();
             }
         } else {
             sRanges = new ArrayList<>();
-            ArrayList<StratigraphicRange> firstRanges = new ArrayList<>();
-            ArrayList<StratigraphicRange> lastRanges = new ArrayList<>();
-            for (Node node:getExternalNodes()) {
+            // ranges waiting for the other occurrence by ID without the suffix, in the order they were found
+            Map<String, StratigraphicRange> firstRanges = new LinkedHashMap<>();
+            Map<String, StratigraphicRange> lastRanges = new LinkedHashMap<>();
+            for (int k=0; k<getExternalNodeCount(); k++) {
+                Node node = m_nodes[getExternalNodeNr(k)];
                 String ID = node.getID();
                 String IDwithoutPrefix = ID;
                 String prefix = "";
@@ -80,18 +233,12 @@ public class SRTree extends Tree {
                         throw new RuntimeException("The first occurrence always has to be a sampled ancestor but " +
                                 node.getID() + " is not a sampled ancestor.");
                     }
-                    boolean found = false;
-                    for (StratigraphicRange candidateRange:lastRanges) {
-                        if (candidateRange.getID().equals(IDwithoutPrefix)) {
-                            candidateRange.setFirstOccurrenceID(ID);
-                            candidateRange.setFirstOccurrenceNodeNr(node.getParent().getNr());
-                            sRanges.add(candidateRange);
-                            lastRanges.remove(candidateRange);
-                            found=true;
-                            break;
-                        }
-                    }
-                    if (!found) {
+                    StratigraphicRange candidateRange = lastRanges.remove(IDwithoutPrefix);
+                    if (candidateRange != null) {
+                        candidateRange.setFirstOccurrenceID(ID);
+                        candidateRange.setFirstOccurrenceNodeNr(node.getParent().getNr());
+                        sRanges.add(candidateRange);
+                    } else {
                         StratigraphicRange range = new StratigraphicRange();
                         range.setID(IDwithoutPrefix);
                         range.setFirstOccurrenceID(ID);
@@ -100,61 +247,141 @@ public class SRTree extends Tree {
                         } else {
                             range.setFirstOccurrenceNodeNr(node.getNr());
                         }
-                        firstRanges.add(range);
+                        firstRanges.put(IDwithoutPrefix, range);
                     }
                 } else {
-                    boolean found = false;
-                    for (StratigraphicRange candidateRange:firstRanges) {
-                        if (candidateRange.getID().equals(IDwithoutPrefix)) {
-                            if (!prefix.equals("last")) {
-                                throw new RuntimeException("Taxa " + candidateRange.getFirstOccurrenceID() + " and " +
-                                        ID  + " are found in the tree. If " + ID + " is the last occurrence then add " +
-                                        "_last at the end.");
-                            }
-                            candidateRange.setLastOccurrenceID(ID);
-                            candidateRange.setLastOccurrenceNodeNr(node.getNr());
-                            sRanges.add(candidateRange);
-                            firstRanges.remove(candidateRange);
-                            found=true;
-                            break;
+                    StratigraphicRange candidateRange = firstRanges.remove(IDwithoutPrefix);
+                    if (candidateRange != null) {
+                        if (!prefix.equals("last")) {
+                            throw new RuntimeException("Taxa " + candidateRange.getFirstOccurrenceID() + " and " +
+                                    ID  + " are found in the tree. If " + ID + " is the last occurrence then add " +
+                                    "_last at the end.");
                         }
-                    }
-                    if (!found) {
+                        candidateRange.setLastOccurrenceID(ID);
+                        candidateRange.setLastOccurrenceNodeNr(node.getNr());
+                        sRanges.add(candidateRange);
+                    } else {
                         StratigraphicRange range = new StratigraphicRange();
                         range.setID(IDwithoutPrefix);
                         range.setLastOccurrenceID(ID);
                         range.setLastOccurrenceNodeNr(node.getNr());
-                        lastRanges.add(range);
+                        lastRanges.put(IDwithoutPrefix, range);
                     }
                 }
             }
             if (!firstRanges.isEmpty()) {
-                throw new RuntimeException("There are taxa with first occurrence only " + firstRanges.toString() +". " +
+                throw new RuntimeException("There are taxa with first occurrence only " + firstRanges.values().toString() +". " +
                         "Single fossil ranges can not have _first at the end." );
             }
-            for (StratigraphicRange range:lastRanges) {
+            for (StratigraphicRange range:lastRanges.values()) {
                 range.makeSingleFossilRange();
             }
-            sRanges.addAll(lastRanges);
+            sRanges.addAll(lastRanges.values());
+            for (int i=0; i<sRanges.size(); i++) {
+                StratigraphicRange range = sRanges.get(i);
+                range.setTree(this, i);
+                indexSRangeNodes(range, 0);
+            }
         }
 
         initStoredRanges();
     }
 
+    /**
+     * @return the leaves by their IDs
+     */
+    private Map<String, Node> getExternalNodesByID() {
+        int count = getExternalNodeCount();
+        Map<String, Node> leavesByID = new HashMap<>(2 * count);
+        for (int k=0; k<count; k++) {
+            Node node = m_nodes[getExternalNodeNr(k)];
+            leavesByID.put(node.getID(), node);
+        }
+        return leavesByID;
+    }
+
+    @Override
+    protected void initArrays() {
+        super.initArrays();
+        invalidateNodeIndexes();
+    }
+
+    /**
+     * invalidates everything derived from the nodes after the tree was reinitialised without going through SRNode
+     */
+    private void invalidateNodeIndexes() {
+        movableNodesValid = false;
+        attachmentIndexValid = false;
+        leafNodesValid = false;
+        ancestralSRangesValid = false;
+        int length = m_nodes.length;
+        if (changedNodeNrs == null || changedNodeNrs.length != length) {
+            changedNodeNrs = new int[length];
+            isChangedNode = new boolean[length];
+            dirtyNodeNrs = new int[length];
+            isDirtyNode = new boolean[length];
+            structureChangedNodeNrs = new int[length];
+            isStructureChangedNode = new boolean[length];
+            structureChangedNodeCount = 0;
+        }
+        clearNodeChanges();
+        clearDirtyNodes();
+        nodeJournalValid = false;
+        allNodesDirty = true;
+        // the nodes may all have changed
+        for (int i=0; i<length; i++) {
+            markStructureChanged(i);
+        }
+        structureVersion++;
+        heightVersion++;
+    }
+
+    private void initSRangeIndex() {
+        int length = m_nodes == null ? nodeCount : m_nodes.length;
+        nodeSRangeNrs = new int[length];
+        nodeSRangePositions = new int[length];
+        Arrays.fill(nodeSRangeNrs, -1);
+        Arrays.fill(nodeSRangePositions, -1);
+        sRangeChangedNodeNrs = new int[length];
+        isSRangeChangedNode = new boolean[length];
+        sRangeChangedNodeCount = 0;
+        sRangesInitCount++;
+        changedSRangeNrs = null;
+        isChangedSRange = null;
+        changedSRangeCount = 0;
+        if (m_nodes != null) {
+            invalidateNodeIndexes();
+        }
+    }
+
+    private void markSRangeChanged(int nodeNr) {
+        if (!isSRangeChangedNode[nodeNr]) {
+            isSRangeChangedNode[nodeNr] = true;
+            sRangeChangedNodeNrs[sRangeChangedNodeCount++] = nodeNr;
+        }
+    }
+
+    private void clearSRangeChanges() {
+        for (int i=0; i<sRangeChangedNodeCount; i++) {
+            isSRangeChangedNode[sRangeChangedNodeNrs[i]] = false;
+        }
+        sRangeChangedNodeCount = 0;
+    }
+
     public void initStoredRanges() {
         storedSRanges = new ArrayList<>();
         for (int i=0; i<sRanges.size(); i++) {
             StratigraphicRange range_src = sRanges.get(i);
             StratigraphicRange range_sink = new StratigraphicRange();
-            ArrayList<Integer> nodeNrs_src = (ArrayList) range_src.getNodeNrs();
-            for (int j=0; j<nodeNrs_src.size(); j++) {
-                range_sink.addNodeNr(nodeNrs_src.get(j));
-            }
+            range_sink.assignNodeNrsFrom(range_src);
             range_sink.setFirstOccurrenceID(range_src.getFirstOccurrenceID());
             range_sink.setLastOccurrenceID(range_src.getLastOccurrenceID());
+            range_sink.setTree(this, i);
             storedSRanges.add(range_sink);
         }
-
+        changedSRangeNrs = new int[sRanges.size()];
+        isChangedSRange = new boolean[sRanges.size()];
+        changedSRangeCount = 0;
     }
 
     /**
@@ -177,6 +404,10 @@ public class SRTree extends Tree {
         leafNodeCount = tree.leafNodeCount;
         initArrays();
         initSRanges();
+        if (other instanceof SRTree && ((SRTree) other).hasIndexedSRanges() && hasSameSRanges((SRTree) other)) {
+            // the taxon IDs only give the first and last nodes, the ranges can also hold bifurcations in between
+            assignSRangesFrom((SRTree) other);
+        }
     }
 
     /**
@@ -208,11 +439,65 @@ public class SRTree extends Tree {
             root.setRight(null);
         }
         assignFrom(rootNr + 1, nodeCount, otherNodes);
-        if(stratigraphicRangeInput.get()!= null) {
+        if (other instanceof SRTree && ((SRTree) other).hasIndexedSRanges() && hasSameSRanges((SRTree) other)) {
+            assignSRangesFrom((SRTree) other);
+        } else if(stratigraphicRangeInput.get()!= null) {
             initSRanges();
         }
     }
 
+    /**
+     * @return true if the ranges were built for the nodes of this tree, which is not the case for a tree that only
+     * initialises another tree, such as RandomSRangeTree
+     */
+    private boolean hasIndexedSRanges() {
+        if (sRanges == null || m_nodes == null || nodeSRangeNrs == null || nodeSRangeNrs.length != m_nodes.length) {
+            return false;
+        }
+        for (StratigraphicRange range : sRanges) {
+            if (range.getNodeNrCount() == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if both trees have initialised ranges with the same first and last occurrences in the same order
+     */
+    private boolean hasSameSRanges(SRTree other) {
+        if (sRanges == null || other.sRanges == null || sRanges.size() != other.sRanges.size() ||
+                nodeSRangeNrs == null || nodeSRangeNrs.length != m_nodes.length) {
+            return false;
+        }
+        for (int i=0; i<sRanges.size(); i++) {
+            StratigraphicRange range = sRanges.get(i);
+            StratigraphicRange otherRange = other.sRanges.get(i);
+            if (!range.getFirstOccurrenceID().equals(otherRange.getFirstOccurrenceID()) ||
+                    !range.getLastOccurrenceID().equals(otherRange.getLastOccurrenceID())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the nodes of the ranges from a tree with the same ranges instead of deriving them from taxon IDs.
+     * The nodes were copied without going through SRNode, so everything derived from them is invalidated.
+     */
+    private void assignSRangesFrom(SRTree other) {
+        invalidateNodeIndexes();
+        for (int i=0; i<sRanges.size(); i++) {
+            sRanges.get(i).assignNodeNrsFrom(other.sRanges.get(i));
+        }
+        for (int i=0; i<sRanges.size(); i++) {
+            storedSRanges.get(i).assignNodeNrsFrom(sRanges.get(i));
+        }
+        clearSRangeJournal();
+        clearSRangeChanges();
+        sRangesInitCount++;
+    }
+
     /**
      * helper to assignFromFragile *
      */
@@ -238,18 +523,37 @@ public class SRTree extends Tree {
      */
     @Override
     protected void store() {
+        long startTime = PerformanceCounter.start(storeCounter);
 
-        storeNodes(0, nodeCount);
-        storedRoot = m_storedNodes[root.getNr()];
-        for (StratigraphicRange range_src:sRanges) {
-            int index = sRanges.indexOf(range_src);
-            StratigraphicRange range_sink = storedSRanges.get(index);
-            range_sink.removeAllNodeNrs();
-            for (int i=0; i< range_src.getNodeNrs().size(); i++) {
-                int nodeNr = range_src.getNodeNrs().get(i);
-                range_sink.addNodeNr(nodeNr);
+        if (nodeJournalValid) {
+            for (int k=0; k<changedNodeCount; k++) {
+                storeNode(changedNodeNrs[k]);
             }
+        } else {
+            storeNodes(0, nodeCount);
+            nodeJournalValid = true;
+        }
+        clearNodeChanges();
+        storedRoot = m_storedNodes[root.getNr()];
+        storedLeafNodeCount = leafNodeCount;
+        for (int k=0; k<changedSRangeCount; k++) {
+            int rangeNr = changedSRangeNrs[k];
+            storedSRanges.get(rangeNr).assignNodeNrsFrom(sRanges.get(rangeNr));
         }
+        clearSRangeJournal();
+        clearSRangeChanges();
+        clearMovableChanges();
+        movableNodesBuiltSinceStore = false;
+        clearAttachmentChanges();
+        attachmentIndexBuiltSinceStore = false;
+        leafNodesChangedSinceStore = false;
+        clearAncestralSRangeChanges();
+        ancestralSRangesBuiltSinceStore = false;
+        clearStructureChanges();
+        structureChangedSinceStore = false;
+        heightChangedSinceStore = false;
+
+        PerformanceCounter.stop(storeCounter, startTime);
     }
 
     /**
@@ -260,77 +564,188 @@ public class SRTree extends Tree {
      * @param end   nodes are stored up to but not including this index
      */
     private void storeNodes(final int start, final int end) {
-        // Use direct members for speed (we are talking 5-7% or more from total time for large trees :)
         for (int i = start; i < end; i++) {
-            final SRNode sink = (SRNode)m_storedNodes[i];
-            final SRNode src = (SRNode)m_nodes[i];
-            sink.height = src.height;
+            storeNode(i);
+        }
+    }
 
-            if ( src.parent != null ) {
-                sink.parent = m_storedNodes[src.parent.getNr()];
-            } else {
-                // currently only called in the case of sampled ancestor trees
-                // where root node is not always last in the list
-                sink.parent = null;
-            }
-
-            final List<Node> children = sink.children;
-            final List<Node> srcChildren = src.children;
-
-            if( children.size() == srcChildren.size() ) {
-                // shave some more time by avoiding list clear and add
-                for (int k = 0; k < children.size(); ++k) {
-                    final SRNode srcChild = (SRNode)srcChildren.get(k);
-                    // don't call addChild, which calls  setParent(..., true);
-                    final Node c = m_storedNodes[srcChild.getNr()];
-                    c.parent = sink;
-                    children.set(k, c);
-                }
-            } else {
-                children.clear();
-                //sink.removeAllChildren(false);
-                for (final Node srcChild : srcChildren) {
-                    // don't call addChild, which calls  setParent(..., true);
-                    final Node c = m_storedNodes[srcChild.getNr()];
-                    c.parent = sink;
-                    children.add(c);
-                    //sink.addChild(c);
-                }
+    /**
+     * Stores the height, the parent and the children of the node with index i
+     */
+    private void storeNode(final int i) {
+        // Use direct members for speed (we are talking 5-7% or more from total time for large trees :)
+        final SRNode sink = (SRNode)m_storedNodes[i];
+        final SRNode src = (SRNode)m_nodes[i];
+        sink.height = src.height;
+
+        if ( src.parent != null ) {
+            sink.parent = m_storedNodes[src.parent.getNr()];
+        } else {
+            // currently only called in the case of sampled ancestor trees
+            // where root node is not always last in the list
+            sink.parent = null;
+        }
+
+        final List<Node> children = sink.children;
+        final List<Node> srcChildren = src.children;
+
+        if( children.size() == srcChildren.size() ) {
+            // shave some more time by avoiding list clear and add
+            for (int k = 0; k < children.size(); ++k) {
+                final SRNode srcChild = (SRNode)srcChildren.get(k);
+                // don't call addChild, which calls  setParent(..., true);
+                final Node c = m_storedNodes[srcChild.getNr()];
+                c.parent = sink;
+                children.set(k, c);
+            }
+        } else {
+            children.clear();
+            //sink.removeAllChildren(false);
+            for (final Node srcChild : srcChildren) {
+                // don't call addChild, which calls  setParent(..., true);
+                final Node c = m_storedNodes[srcChild.getNr()];
+                c.parent = sink;
+                children.add(c);
+                //sink.addChild(c);
             }
         }
     }
 
     @Override
     public void restore() {
+        long startTime = PerformanceCounter.start(restoreCounter);
 
         // necessary for sampled ancestor trees
         nodeCount = m_storedNodes.length;
 
+        // only the nodes in the dirty journal can have their flags set, clear them before they become stored nodes
+        if (allNodesDirty) {
+            for( Node n : m_nodes ) {
+                n.isDirty = Tree.IS_CLEAN;
+            }
+            for( Node n : m_storedNodes ) {
+                n.isDirty = Tree.IS_CLEAN;
+            }
+            allNodesDirty = false;
+        } else {
+            for (int k=0; k<dirtyNodeCount; k++) {
+                m_nodes[dirtyNodeNrs[k]].isDirty = Tree.IS_CLEAN;
+            }
+        }
+        clearDirtyNodes();
+
         final Node[] tmp = m_storedNodes;
         m_storedNodes = m_nodes;
         m_nodes = tmp;
         root = m_nodes[storedRoot.getNr()];
 
-        // necessary for sampled ancestor trees,
-        // we have the nodes, no need for expensive recursion
-        leafNodeCount = 0;
-        for( Node n : m_nodes ) {
-            leafNodeCount += n.isLeaf() ? 1 : 0;
+        if (nodeJournalValid) {
+            // the node arrays now differ exactly in the changed nodes, which stay in the journal for the next store()
+            leafNodeCount = storedLeafNodeCount;
+        } else {
+            // necessary for sampled ancestor trees,
+            // we have the nodes, no need for expensive recursion
+            leafNodeCount = 0;
+            for( Node n : m_nodes ) {
+                leafNodeCount += n.isLeaf() ? 1 : 0;
+            }
         }
 
         //leafNodeCount = root.getLeafNodeCount();
 
         hasStartedEditing = false;
 
-        for( Node n : m_nodes ) {
-            n.isDirty = Tree.IS_CLEAN;
+        postCache = null;
+
+        // the ranges update the node to range index and the movable node set while being copied back
+        for (int k=0; k<changedSRangeCount; k++) {
+            int rangeNr = changedSRangeNrs[k];
+            sRanges.get(rangeNr).assignNodeNrsFrom(storedSRanges.get(rangeNr));
         }
+        clearSRangeJournal();
+        clearSRangeChanges();
 
-        postCache = null;
+        restoreMovableNodes();
+        restoreAttachmentIndex();
+        restoreAncestralSRanges();
+        if (leafNodesChangedSinceStore) {
+            leafNodesValid = false;
+            leafNodesChangedSinceStore = false;
+        }
+        if (structureChangedSinceStore) {
+            structureVersion++;
+            structureChangedSinceStore = false;
+        }
+        if (heightChangedSinceStore) {
+            heightVersion++;
+            heightChangedSinceStore = false;
+        }
+        clearStructureChanges();
 
-        ArrayList<StratigraphicRange> tmp_ranges = storedSRanges;
-        storedSRanges = sRanges;
-        sRanges=tmp_ranges;
+        PerformanceCounter.stop(restoreCounter, startTime);
+    }
+
+    @Override
+    public void setEverythingDirty(final boolean isDirty) {
+        if (isDirty || allNodesDirty) {
+            super.setEverythingDirty(isDirty);
+            if (!isDirty && m_storedNodes != null) {
+                // copied nodes start filthy
+                for( Node n : m_storedNodes ) {
+                    n.isDirty = Tree.IS_CLEAN;
+                }
+            }
+            allNodesDirty = isDirty;
+        } else {
+            setSomethingIsDirty(false);
+            for (int k=0; k<dirtyNodeCount; k++) {
+                m_nodes[dirtyNodeNrs[k]].isDirty = Tree.IS_CLEAN;
+            }
+        }
+        clearDirtyNodes();
+    }
+
+    private void markNodeChanged(int nodeNr) {
+        if (!isChangedNode[nodeNr]) {
+            isChangedNode[nodeNr] = true;
+            changedNodeNrs[changedNodeCount++] = nodeNr;
+        }
+    }
+
+    private void clearNodeChanges() {
+        for (int k=0; k<changedNodeCount; k++) {
+            isChangedNode[changedNodeNrs[k]] = false;
+        }
+        changedNodeCount = 0;
+    }
+
+    private void markNodeDirty(int nodeNr) {
+        if (!isDirtyNode[nodeNr]) {
+            isDirtyNode[nodeNr] = true;
+            dirtyNodeNrs[dirtyNodeCount++] = nodeNr;
+        }
+    }
+
+    private void clearDirtyNodes() {
+        for (int k=0; k<dirtyNodeCount; k++) {
+            isDirtyNode[dirtyNodeNrs[k]] = false;
+        }
+        dirtyNodeCount = 0;
+    }
+
+    private void markSRangeDirty(int rangeNr) {
+        // the range journal starts with initStoredRanges()
+        if (isChangedSRange != null && !isChangedSRange[rangeNr]) {
+            isChangedSRange[rangeNr] = true;
+            changedSRangeNrs[changedSRangeCount++] = rangeNr;
+        }
+    }
+
+    private void clearSRangeJournal() {
+        for (int k=0; k<changedSRangeCount; k++) {
+            isChangedSRange[changedSRangeNrs[k]] = false;
+        }
+        changedSRangeCount = 0;
     }
 
 
@@ -340,6 +755,10 @@ public class SRTree extends Tree {
         return  sRanges;
     }
 
+    /**
+     * @deprecated allocates a new list on every call, use isSRangeInternalNode(int)
+     */
+    @Deprecated
     public ArrayList<Integer> getSRangesInternalNodeNrs() { // nodes that do not represent the first occurrences, does not include nodes
         // from single fossil range
         ArrayList<Integer> internalNodeNrs = new ArrayList<>();
@@ -349,6 +768,14 @@ public class SRTree extends Tree {
         return internalNodeNrs;
     }
 
+    /**
+     * @param nodeNr the number of a node
+     * @return true if the node belongs to a range and does not represent its first occurrence
+     */
+    public boolean isSRangeInternalNode(int nodeNr) {
+        return nodeSRangePositions[nodeNr] > 0;
+    }
+
     public StratigraphicRange sRangesContainsID(String taxonName) {
         for (StratigraphicRange range:sRanges) {
             if (range.getFirstOccurrenceID().equals(taxonName)) {
@@ -362,25 +789,903 @@ public class SRTree extends Tree {
     }
 
     public StratigraphicRange getRangeOfNode(Node node) {
+        int rangeNr = nodeSRangeNrs[node.getNr()];
+        if (rangeNr < 0) {
+            return null;
+        }
+        return sRanges.get(rangeNr);
+    }
+
+
+
+    public boolean belongToSameSRange(int node1Nr, int node2Nr) {
+        int rangeNr = nodeSRangeNrs[node1Nr];
+        return rangeNr >= 0 && rangeNr == nodeSRangeNrs[node2Nr];
+    }
+
+    /**
+     * @param nodeNr the number of a node
+     * @return the number of the range the node belongs to or -1 if the node does not belong to a range
+     */
+    public int getSRangeNr(int nodeNr) {
+        return nodeSRangeNrs[nodeNr];
+    }
+
+    /**
+     * @param nodeNr the number of a node
+     * @return the position of the node in its range or -1 if the node does not belong to a range
+     */
+    public int getSRangePosition(int nodeNr) {
+        return nodeSRangePositions[nodeNr];
+    }
+
+    /**
+     * @return true if the range is one of the current (not stored) ranges of this tree
+     */
+    public boolean isCurrentSRange(StratigraphicRange range) {
+        int rangeNr = range.getRangeNr();
+        return sRanges != null && rangeNr >= 0 && rangeNr < sRanges.size() && sRanges.get(rangeNr) == range;
+    }
+
+    /**
+     * Updates the node to range index for the nodes of the range starting from the given position.
+     * Called by the range every time its list of nodes changes.
+     */
+    public void indexSRangeNodes(StratigraphicRange range, int fromPosition) {
+        if (!isCurrentSRange(range)) {
+            return;
+        }
+        int rangeNr = range.getRangeNr();
+        markSRangeDirty(rangeNr);
+        if (fromPosition == 0) {
+            markAncestralSRangeStale(rangeNr);
+        }
+        structureChanged();
+        for (int i=fromPosition; i<range.getNodeNrCount(); i++) {
+            int nodeNr = range.getNodeNr(i);
+            if (nodeNr != StratigraphicRange.NO_NODE) {
+                if (nodeSRangeNrs[nodeNr] != rangeNr) {
+                    markSRangeChanged(nodeNr);
+                }
+                if (nodeSRangeNrs[nodeNr] != rangeNr || nodeSRangePositions[nodeNr] != i) {
+                    markStructureChanged(nodeNr);
+                }
+                boolean wasInternal = nodeSRangePositions[nodeNr] > 0;
+                nodeSRangeNrs[nodeNr] = rangeNr;
+                nodeSRangePositions[nodeNr] = i;
+                if (wasInternal != (i > 0)) {
+                    updateMovableNode(nodeNr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the node from the node to range index if it is indexed as a node of the range.
+     * Called by the range every time a node is removed from it.
+     */
+    public void unindexSRangeNode(StratigraphicRange range, int nodeNr) {
+        if (!isCurrentSRange(range)) {
+            return;
+        }
+        markSRangeDirty(range.getRangeNr());
+        structureChanged();
+        if (nodeSRangeNrs[nodeNr] == range.getRangeNr()) {
+            boolean wasInternal = nodeSRangePositions[nodeNr] > 0;
+            nodeSRangeNrs[nodeNr] = -1;
+            nodeSRangePositions[nodeNr] = -1;
+            markSRangeChanged(nodeNr);
+            markStructureChanged(nodeNr);
+            if (wasInternal) {
+                updateMovableNode(nodeNr);
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes that joined or left a range since the last store() or restore()
+     */
+    public int getSRangeChangedNodeCount() {
+        return sRangeChangedNodeCount;
+    }
+
+    /**
+     * @param i index between 0 and getSRangeChangedNodeCount()-1
+     * @return the number of the i-th node that joined or left a range since the last store() or restore()
+     */
+    public int getSRangeChangedNodeNr(int i) {
+        return sRangeChangedNodeNrs[i];
+    }
+
+    /**
+     * @return true if only the nodes listed by getDirtyNodeNr can have their isDirty flag set, false if any node can
+     * be dirty, for example after setEverythingDirty(true) or after the tree was reinitialised
+     */
+    public boolean isDirtyNodeJournalValid() {
+        return !allNodesDirty;
+    }
+
+    /**
+     * @return the number of nodes in the dirty node journal, which is cleared by restore() and setEverythingDirty(false)
+     */
+    public int getDirtyNodeCount() {
+        return dirtyNodeCount;
+    }
+
+    /**
+     * @param i index between 0 and getDirtyNodeCount()-1
+     * @return the number of the i-th node whose isDirty flag may be set
+     */
+    public int getDirtyNodeNr(int i) {
+        return dirtyNodeNrs[i];
+    }
+
+    /**
+     * @return a number that increases every time the parent or the children of a node or the nodes of a range
+     * change, including when restore() undoes such changes
+     */
+    public long getStructureVersion() {
+        return structureVersion;
+    }
+
+    /**
+     * @return a number that increases every time the height of a node changes, including when restore() undoes such
+     * changes
+     */
+    public long getHeightVersion() {
+        return heightVersion;
+    }
+
+    /**
+     * @return the number of nodes whose parent, children, range or position in their range changed since the last
+     * store() or restore()
+     */
+    public int getStructureChangedNodeCount() {
+        return structureChangedNodeCount;
+    }
+
+    /**
+     * @param i index between 0 and getStructureChangedNodeCount()-1
+     * @return the number of the i-th node whose parent, children, range or position in their range changed since
+     * the last store() or restore(), a node whose children were swapped is listed with both children
+     */
+    public int getStructureChangedNodeNr(int i) {
+        return structureChangedNodeNrs[i];
+    }
+
+    private void structureChanged() {
+        structureVersion++;
+        structureChangedSinceStore = true;
+    }
+
+    private void markStructureChanged(int nodeNr) {
+        // the list starts with the node arrays
+        if (structureChangedNodeNrs != null && !isStructureChangedNode[nodeNr]) {
+            isStructureChangedNode[nodeNr] = true;
+            structureChangedNodeNrs[structureChangedNodeCount++] = nodeNr;
+        }
+    }
+
+    private void clearStructureChanges() {
+        for (int k=0; k<structureChangedNodeCount; k++) {
+            isStructureChangedNode[structureChangedNodeNrs[k]] = false;
+        }
+        structureChangedNodeCount = 0;
+    }
+
+    /**
+     * @return the number of times the ranges were rebuilt from scratch, every node should be considered changed
+     * when this number changes
+     */
+    public int getSRangesInitCount() {
+        return sRangesInitCount;
+    }
+
+    // Movable node methods:
+
+    /**
+     * @return true if the node is not the root, is not a sampled ancestor on a zero branch and is not an internal
+     * node of a range
+     */
+    public boolean isMovableNode(Node node) {
+        return !node.isRoot() && !node.isDirectAncestor() && !isSRangeInternalNode(node.getNr());
+    }
+
+    /**
+     * @return the number of nodes that are movable in the sense of isMovableNode(Node)
+     */
+    public int getMovableNodeCount() {
+        if (!movableNodesValid) {
+            rebuildMovableNodes();
+        }
+        return movableNodeCount;
+    }
+
+    /**
+     * @param k index between 0 and getMovableNodeCount()-1
+     * @return the number of the k-th movable node, the order of the nodes is arbitrary
+     */
+    public int getMovableNodeNr(int k) {
+        if (!movableNodesValid) {
+            rebuildMovableNodes();
+        }
+        return movableNodeNrs[k];
+    }
+
+    /**
+     * Re-evaluates whether the node is movable and adds it to or removes it from the movable set.
+     * Operators have to call it for every node that may have become or stopped being the root or a sampled
+     * ancestor, changes of range membership are picked up automatically.
+     */
+    public void updateMovableNode(int nodeNr) {
+        if (!movableNodesValid) {
+            return;
+        }
+        boolean movable = isMovableNode(m_nodes[nodeNr]);
+        int k = movableNodePositions[nodeNr];
+        if (movable != (k >= 0) && !isMovableChangedNode[nodeNr]) {
+            isMovableChangedNode[nodeNr] = true;
+            movableChangedNodeNrs[movableChangedNodeCount++] = nodeNr;
+        }
+        if (movable && k < 0) {
+            movableNodeNrs[movableNodeCount] = nodeNr;
+            movableNodePositions[nodeNr] = movableNodeCount;
+            movableNodeCount++;
+        } else if (!movable && k >= 0) {
+            movableNodeCount--;
+            int lastNr = movableNodeNrs[movableNodeCount];
+            movableNodeNrs[k] = lastNr;
+            movableNodePositions[lastNr] = k;
+            movableNodePositions[nodeNr] = -1;
+        }
+    }
+
+    private void rebuildMovableNodes() {
+        int length = m_nodes.length;
+        if (movableNodeNrs == null || movableNodeNrs.length != length) {
+            movableNodeNrs = new int[length];
+            movableNodePositions = new int[length];
+            movableChangedNodeNrs = new int[length];
+            isMovableChangedNode = new boolean[length];
+        } else {
+            clearMovableChanges();
+        }
+        Arrays.fill(movableNodePositions, -1);
+        movableNodeCount = 0;
+        for (int i=0; i<nodeCount; i++) {
+            if (isMovableNode(m_nodes[i])) {
+                movableNodeNrs[movableNodeCount] = i;
+                movableNodePositions[i] = movableNodeCount;
+                movableNodeCount++;
+            }
+        }
+        movableNodesValid = true;
+        movableNodesBuiltSinceStore = true;
+    }
+
+    private void clearMovableChanges() {
+        for (int k=0; k<movableChangedNodeCount; k++) {
+            isMovableChangedNode[movableChangedNodeNrs[k]] = false;
+        }
+        movableChangedNodeCount = 0;
+    }
+
+    private void restoreMovableNodes() {
+        if (movableNodesBuiltSinceStore) {
+            // the set was built from a state that is not the stored one, but it can only differ in the changed nodes
+            if (movableNodesValid && nodeJournalValid) {
+                forEachChangedNodeAndChild(this::updateMovableNode);
+                clearMovableChanges();
+            } else {
+                movableNodesValid = false;
+            }
+        } else if (movableNodesValid) {
+            for (int k=0; k<movableChangedNodeCount; k++) {
+                updateMovableNode(movableChangedNodeNrs[k]);
+            }
+            clearMovableChanges();
+        }
+        movableNodesBuiltSinceStore = false;
+    }
+
+    /**
+     * Calls the action for the nodes that changed since the last store() and for their children. After restore()
+     * these are the only nodes whose height, parent height or sampled ancestor status can differ from any state
+     * reached since the last store().
+     */
+    private void forEachChangedNodeAndChild(IntConsumer action) {
+        for (int k=0; k<changedNodeCount; k++) {
+            Node node = m_nodes[changedNodeNrs[k]];
+            action.accept(node.getNr());
+            for (Node child : node.getChildren()) {
+                action.accept(child.getNr());
+            }
+        }
+    }
+
+    // Attachment index methods:
+
+    /**
+     * @return the number of nodes that are not sampled ancestors on zero branches and whose parent is strictly
+     * higher than height, the root counts as having an infinitely high parent
+     */
+    public int getAttachmentEdgeCountAbove(double height) {
+        ensureAttachmentIndex();
+        return attachmentEdges.countAbove(height);
+    }
+
+    /**
+     * @param k index between 0 and getAttachmentEdgeCountAbove(height)-1
+     * @return the number of the k-th node counted by getAttachmentEdgeCountAbove(height)
+     */
+    public int getAttachmentEdgeNrAbove(double height, int k) {
+        ensureAttachmentIndex();
+        return attachmentEdges.getNodeNrAbove(height, k);
+    }
+
+    /**
+     * @return the number of leaves that are not sampled ancestors and are strictly higher than height
+     */
+    public int getAttachmentLeafCountAbove(double height) {
+        ensureAttachmentIndex();
+        return attachmentLeaves.countAbove(height);
+    }
+
+    /**
+     * @param k index between 0 and getAttachmentLeafCountAbove(height)-1
+     * @return the number of the k-th leaf counted by getAttachmentLeafCountAbove(height)
+     */
+    public int getAttachmentLeafNrAbove(double height, int k) {
+        ensureAttachmentIndex();
+        return attachmentLeaves.getNodeNrAbove(height, k);
+    }
+
+    /**
+     * Called by SRNode when the height, the parent or the children of the node change.
+     * @param withChildren whether the children of the node have to be updated as well, that is when the height of
+     *                     the node changed
+     */
+    void nodeChanged(Node node, boolean withChildren) {
+        if (m_nodes == null || changedNodeNrs == null || !isCurrentNode(node)) {
+            return;
+        }
+        markNodeChanged(node.getNr());
+        markNodeDirty(node.getNr());
+        if (withChildren) {
+            heightVersion++;
+            heightChangedSinceStore = true;
+        } else {
+            structureChanged();
+            markStructureChanged(node.getNr());
+            for (Node child : node.getChildren()) {
+                if (child != null && isCurrentNode(child)) {
+                    markStructureChanged(child.getNr());
+                }
+            }
+        }
+        if (withChildren) {
+            for (Node child : node.getChildren()) {
+                if (child != null && isCurrentNode(child)) {
+                    markNodeDirty(child.getNr());
+                }
+            }
+        }
+        if (leafNodesValid && (leafSlots[node.getNr()] >= 0) != node.isLeaf()) {
+            leafNodesValid = false;
+            leafNodesChangedSinceStore = true;
+        }
+        if (attachmentIndexValid) {
+            updateAttachmentNode(node, withChildren);
+        }
+        if (ancestralSRangesValid && !withChildren) {
+            markAncestralSRangesStaleBelow(node);
+        }
+    }
+
+    /**
+     * Called by SRNode when the node became or stopped being a fake node because a height changed.
+     */
+    void fakeNodeChanged(Node node) {
+        if (m_nodes == null || !ancestralSRangesValid || !isCurrentNode(node)) {
+            return;
+        }
+        markAncestralSRangesStaleBelow(node);
+    }
+
+    /**
+     * Called by SRNode when the isDirty flag of the node is set directly.
+     */
+    void nodeMadeDirty(Node node) {
+        if (m_nodes == null || changedNodeNrs == null || !isCurrentNode(node)) {
+            return;
+        }
+        markNodeDirty(node.getNr());
+    }
+
+    private void updateAttachmentNode(Node node, boolean withChildren) {
+        updateAttachmentNode(node.getNr());
+        if (withChildren) {
+            for (Node child : node.getChildren()) {
+                if (child != null && isCurrentNode(child)) {
+                    updateAttachmentNode(child.getNr());
+                }
+            }
+        }
+    }
+
+    private boolean isCurrentNode(Node node) {
         int nodeNr = node.getNr();
-        for (StratigraphicRange candidate_range:sRanges) {
-            if (candidate_range.containsNodeNr(nodeNr)) {
-                return candidate_range;
+        return nodeNr >= 0 && nodeNr < m_nodes.length && m_nodes[nodeNr] == node;
+    }
+
+    private void updateAttachmentNode(int nodeNr) {
+        Node node = m_nodes[nodeNr];
+        boolean isDirectAncestor = node.isDirectAncestor();
+        double parentHeight = node.isRoot() ? Double.POSITIVE_INFINITY : node.getParent().getHeight();
+        if (!isAttachmentChangedNode[nodeNr]) {
+            isAttachmentChangedNode[nodeNr] = true;
+            attachmentChangedNodeNrs[attachmentChangedNodeCount++] = nodeNr;
+            storedInAttachmentEdges[nodeNr] = attachmentEdges.contains(nodeNr);
+            storedAttachmentEdgeKeys[nodeNr] = attachmentEdges.getKey(nodeNr);
+            storedInAttachmentLeaves[nodeNr] = attachmentLeaves.contains(nodeNr);
+            storedAttachmentLeafKeys[nodeNr] = attachmentLeaves.getKey(nodeNr);
+        }
+        attachmentEdges.set(nodeNr, !isDirectAncestor, parentHeight);
+        attachmentLeaves.set(nodeNr, node.isLeaf() && !isDirectAncestor, node.getHeight());
+    }
+
+    private void ensureAttachmentIndex() {
+        if (attachmentIndexValid) {
+            return;
+        }
+        int length = m_nodes.length;
+        if (attachmentEdges == null || attachmentEdges.capacity() != length) {
+            attachmentEdges = new HeightIndex(length);
+            attachmentLeaves = new HeightIndex(length);
+            attachmentChangedNodeNrs = new int[length];
+            isAttachmentChangedNode = new boolean[length];
+            storedInAttachmentEdges = new boolean[length];
+            storedAttachmentEdgeKeys = new double[length];
+            storedInAttachmentLeaves = new boolean[length];
+            storedAttachmentLeafKeys = new double[length];
+        } else {
+            attachmentEdges.clear();
+            attachmentLeaves.clear();
+        }
+        attachmentIndexValid = true;
+        for (int i=0; i<nodeCount; i++) {
+            updateAttachmentNode(i);
+        }
+        clearAttachmentChanges();
+        attachmentIndexBuiltSinceStore = true;
+    }
+
+    private void clearAttachmentChanges() {
+        for (int i=0; i<attachmentChangedNodeCount; i++) {
+            isAttachmentChangedNode[attachmentChangedNodeNrs[i]] = false;
+        }
+        attachmentChangedNodeCount = 0;
+    }
 
+    private void restoreAttachmentIndex() {
+        if (attachmentIndexBuiltSinceStore) {
+            // the index was built from a state that is not the stored one, but it can only differ in the changed nodes
+            if (attachmentIndexValid && nodeJournalValid) {
+                forEachChangedNodeAndChild(this::updateAttachmentNode);
+            } else {
+                attachmentIndexValid = false;
+            }
+        } else if (attachmentIndexValid) {
+            for (int i=0; i<attachmentChangedNodeCount; i++) {
+                int nodeNr = attachmentChangedNodeNrs[i];
+                attachmentEdges.set(nodeNr, storedInAttachmentEdges[nodeNr], storedAttachmentEdgeKeys[nodeNr]);
+                attachmentLeaves.set(nodeNr, storedInAttachmentLeaves[nodeNr], storedAttachmentLeafKeys[nodeNr]);
             }
         }
-        return null;
+        clearAttachmentChanges();
     }
 
+    // Ancestral range index methods:
 
+    /**
+     * @param rangeNr the number of a range
+     * @return the number of the fake node that ends the range the range buds off from, that is the first fake node
+     * above the first node of the range that is reached by climbing along left children, or -1 if there is none
+     */
+    public int getAncestralSRangeLastNodeNr(int rangeNr) {
+        ensureAncestralSRanges();
+        return ancestralSRangeLastNodeNrs[rangeNr];
+    }
 
-    public boolean belongToSameSRange(int node1Nr, int node2Nr) {
-        for (StratigraphicRange range:sRanges) {
-            if (range.containsNodeNr(node1Nr) && range.containsNodeNr(node2Nr)) {
+    /**
+     * Recalculates the stale entries of the ancestral range index. getAncestralSRangeLastNodeNr(int) calls it, but
+     * it has to be called before the index is read from several threads.
+     */
+    public void ensureAncestralSRanges() {
+        if (!ancestralSRangesValid) {
+            int rangeCount = sRanges.size();
+            if (ancestralSRangeLastNodeNrs == null || ancestralSRangeLastNodeNrs.length != rangeCount) {
+                ancestralSRangeLastNodeNrs = new int[rangeCount];
+                staleAncestralSRangeNrs = new int[rangeCount];
+                isStaleAncestralSRange = new boolean[rangeCount];
+                ancestralChangedSRangeNrs = new int[rangeCount];
+                isAncestralChangedSRange = new boolean[rangeCount];
+            } else {
+                clearAncestralSRangeChanges();
+            }
+            for (int k=0; k<staleAncestralSRangeCount; k++) {
+                isStaleAncestralSRange[staleAncestralSRangeNrs[k]] = false;
+            }
+            staleAncestralSRangeCount = 0;
+            for (int rangeNr=0; rangeNr<rangeCount; rangeNr++) {
+                ancestralSRangeLastNodeNrs[rangeNr] = findAncestralSRangeLastNodeNr(rangeNr);
+            }
+            ancestralSRangesValid = true;
+            ancestralSRangesBuiltSinceStore = true;
+            return;
+        }
+        for (int k=0; k<staleAncestralSRangeCount; k++) {
+            int rangeNr = staleAncestralSRangeNrs[k];
+            isStaleAncestralSRange[rangeNr] = false;
+            ancestralSRangeLastNodeNrs[rangeNr] = findAncestralSRangeLastNodeNr(rangeNr);
+        }
+        staleAncestralSRangeCount = 0;
+    }
+
+    private int findAncestralSRangeLastNodeNr(int rangeNr) {
+        Node node = m_nodes[sRanges.get(rangeNr).getFirstNodeNr()];
+        Node parent = node.getParent();
+        while (parent != null) {
+            if (parent.isFake()) {
+                return parent.getNr();
+            } else if (parent.getChild(0) != node) {
+                return -1;
+            }
+            node = parent;
+            parent = node.getParent();
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the entries of the ranges whose climb can pass through the node as stale: the ranges that start at the
+     * node, at one of its children or further down the left children of its children, where a fake node ends the
+     * climbs from below it.
+     */
+    private void markAncestralSRangesStaleBelow(Node node) {
+        markAncestralSRangeStaleAt(node.getNr());
+        for (Node child : node.getChildren()) {
+            while (child != null) {
+                markAncestralSRangeStaleAt(child.getNr());
+                if (child.isLeaf() || isFakeNode(child)) {
+                    break;
+                }
+                child = child.getChildren().get(0);
+            }
+        }
+    }
+
+    private void markAncestralSRangeStaleAt(int nodeNr) {
+        if (nodeSRangePositions[nodeNr] == 0) {
+            markAncestralSRangeStale(nodeSRangeNrs[nodeNr]);
+        }
+    }
+
+    private void markAncestralSRangeStale(int rangeNr) {
+        if (!ancestralSRangesValid) {
+            return;
+        }
+        if (!isStaleAncestralSRange[rangeNr]) {
+            isStaleAncestralSRange[rangeNr] = true;
+            staleAncestralSRangeNrs[staleAncestralSRangeCount++] = rangeNr;
+        }
+        if (!isAncestralChangedSRange[rangeNr]) {
+            isAncestralChangedSRange[rangeNr] = true;
+            ancestralChangedSRangeNrs[ancestralChangedSRangeCount++] = rangeNr;
+        }
+    }
+
+    /**
+     * @return true if a child of the node is a sampled ancestor on a zero branch, like Node.isFake() but the node may
+     * be missing a child while an operator edits the tree
+     */
+    static boolean isFakeNode(Node node) {
+        for (Node child : node.getChildren()) {
+            if (child != null && child.isDirectAncestor()) {
                 return true;
             }
         }
         return false;
     }
 
+    private void clearAncestralSRangeChanges() {
+        for (int k=0; k<ancestralChangedSRangeCount; k++) {
+            isAncestralChangedSRange[ancestralChangedSRangeNrs[k]] = false;
+        }
+        ancestralChangedSRangeCount = 0;
+    }
+
+    private void restoreAncestralSRanges() {
+        if (ancestralSRangesBuiltSinceStore) {
+            ancestralSRangesValid = false;
+        } else if (ancestralSRangesValid) {
+            // only the entries that became stale since the last store() can differ from the stored state
+            for (int k=0; k<ancestralChangedSRangeCount; k++) {
+                int rangeNr = ancestralChangedSRangeNrs[k];
+                if (!isStaleAncestralSRange[rangeNr]) {
+                    isStaleAncestralSRange[rangeNr] = true;
+                    staleAncestralSRangeNrs[staleAncestralSRangeCount++] = rangeNr;
+                }
+            }
+        }
+        clearAncestralSRangeChanges();
+        ancestralSRangesBuiltSinceStore = false;
+    }
+
+    // Leaf index methods:
+
+    /**
+     * @return the number of leaves, the same as getExternalNodes().size() but without allocating a list
+     */
+    public int getExternalNodeCount() {
+        if (!leafNodesValid) {
+            rebuildLeafNodes();
+        }
+        return leafNodeNrCount;
+    }
+
+    /**
+     * @param k index between 0 and getExternalNodeCount()-1
+     * @return the number of the k-th leaf, leaves are in the same order as in getExternalNodes()
+     */
+    public int getExternalNodeNr(int k) {
+        if (!leafNodesValid) {
+            rebuildLeafNodes();
+        }
+        return leafNodeNrs[k];
+    }
+
+    /**
+     * @return the index k such that getExternalNodeNr(k) == nodeNr or -1 if the node is not a leaf
+     */
+    public int getLeafSlot(int nodeNr) {
+        if (!leafNodesValid) {
+            rebuildLeafNodes();
+        }
+        return leafSlots[nodeNr];
+    }
+
+    @Override
+    public List<Node> getExternalNodes() {
+        int count = getExternalNodeCount();
+        final ArrayList<Node> externalNodes = new ArrayList<>(count);
+        for (int k=0; k<count; k++) {
+            externalNodes.add(m_nodes[leafNodeNrs[k]]);
+        }
+        return externalNodes;
+    }
+
+    private void rebuildLeafNodes() {
+        int length = m_nodes.length;
+        if (leafNodeNrs == null || leafNodeNrs.length != length) {
+            leafNodeNrs = new int[length];
+            leafSlots = new int[length];
+        }
+        leafNodeNrCount = 0;
+        for (int i=0; i<length; i++) {
+            if (i < nodeCount && m_nodes[i].isLeaf()) {
+                leafNodeNrs[leafNodeNrCount] = i;
+                leafSlots[i] = leafNodeNrCount;
+                leafNodeNrCount++;
+            } else {
+                leafSlots[i] = -1;
+            }
+        }
+        leafNodesValid = true;
+    }
+
+    private static final int CHECKPOINT_MAGIC = 0x53524350;
+    private static final int CHECKPOINT_VERSION = 2;
+
+    /**
+     * Writes a binary checkpoint of the current state of the tree: the node count, the range count, the number of
+     * the root, the height and the left and right child of every node, and the node numbers of every range in order.
+     * The stored state is not written, it is only needed to undo a proposal. Node IDs are not written, the checkpoint
+     * can only be read by a tree with the same taxa.
+     */
+    public void writeCheckpoint(WritableByteChannel channel) throws IOException {
+        int rangeNodeCount = 0;
+        for (StratigraphicRange range : sRanges) {
+            rangeNodeCount += range.getNodeNrCount();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(20 + 16*nodeCount + 4*(sRanges.size() + rangeNodeCount));
+        buffer.putInt(CHECKPOINT_MAGIC);
+        buffer.putInt(CHECKPOINT_VERSION);
+        buffer.putInt(nodeCount);
+        buffer.putInt(sRanges.size());
+        buffer.putInt(root.getNr());
+        for (int i=0; i<nodeCount; i++) {
+            Node node = m_nodes[i];
+            buffer.putDouble(node.height);
+            buffer.putInt(node.getLeft() == null ? -1 : node.getLeft().getNr());
+            buffer.putInt(node.getRight() == null ? -1 : node.getRight().getNr());
+        }
+        for (StratigraphicRange range : sRanges) {
+            buffer.putInt(range.getNodeNrCount());
+            for (int i=0; i<range.getNodeNrCount(); i++) {
+                buffer.putInt(range.getNodeNr(i));
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes a binary checkpoint to a file, the checkpoint is written to a temporary file that replaces the file
+     * once it is complete so that a job killed while writing keeps the previous checkpoint.
+     */
+    public void writeCheckpoint(Path path) throws IOException {
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeCheckpoint(channel);
+            channel.force(false);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores the tree from a binary checkpoint written by writeCheckpoint in O(n), without matching taxon IDs.
+     * The whole checkpoint is read and checked before the tree is changed, a checkpoint that does not describe a
+     * binary tree of all nodes with every node in at most one range is rejected with an IOException. The nodes and
+     * ranges become the same as when the checkpoint was written, everything derived from them is rebuilt lazily and
+     * the next store() copies all nodes.
+     */
+    public void readCheckpoint(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = readCheckpointBytes(channel, 20);
+        if (header.getInt() != CHECKPOINT_MAGIC || header.getInt() != CHECKPOINT_VERSION) {
+            throw new IOException("Not a binary checkpoint of an SRTree or an unsupported version");
+        }
+        int checkpointNodeCount = header.getInt();
+        int checkpointRangeCount = header.getInt();
+        if (checkpointNodeCount != nodeCount || checkpointRangeCount != sRanges.size()) {
+            throw new IOException("The checkpoint has " + checkpointNodeCount + " nodes and " + checkpointRangeCount +
+                    " ranges but the tree has " + nodeCount + " nodes and " + sRanges.size() + " ranges");
+        }
+        int rootNr = header.getInt();
+        if (rootNr < 0 || rootNr >= nodeCount) {
+            throw new IOException("The root " + rootNr + " of the checkpoint is not a node");
+        }
+
+        ByteBuffer buffer = readCheckpointBytes(channel, 16*nodeCount);
+        double[] heights = new double[nodeCount];
+        int[] childNrs = new int[2*nodeCount];
+        for (int i=0; i<nodeCount; i++) {
+            heights[i] = buffer.getDouble();
+            childNrs[2*i] = buffer.getInt();
+            childNrs[2*i+1] = buffer.getInt();
+        }
+        checkCheckpointTree(rootNr, childNrs);
+        int[][] rangeNodeNrs = readCheckpointRanges(channel);
+
+        // the checkpoint is valid, don't call setLeft and setRight, which go through SRNode
+        for (int i=0; i<nodeCount; i++) {
+            m_nodes[i].height = heights[i];
+            m_nodes[i].parent = null;
+            m_nodes[i].children.clear();
+        }
+        for (int i=0; i<nodeCount; i++) {
+            for (int k=2*i; k<2*i+2 && childNrs[k] >= 0; k++) {
+                m_nodes[i].children.add(m_nodes[childNrs[k]]);
+                m_nodes[childNrs[k]].parent = m_nodes[i];
+            }
+        }
+        root = m_nodes[rootNr];
+        leafNodeCount = 0;
+        for (int i=0; i<nodeCount; i++) {
+            leafNodeCount += m_nodes[i].isLeaf() ? 1 : 0;
+        }
+        internalNodeCount = nodeCount - leafNodeCount;
+        postCache = null;
+        hasStartedEditing = false;
+
+        // the nodes were set without going through SRNode, this also makes the next store() copy all nodes
+        invalidateNodeIndexes();
+        for (int k=0; k<sRanges.size(); k++) {
+            sRanges.get(k).assignNodeNrs(rangeNodeNrs[k], rangeNodeNrs[k].length);
+            storedSRanges.get(k).assignNodeNrsFrom(sRanges.get(k));
+        }
+        clearSRangeJournal();
+        clearSRangeChanges();
+        sRangesInitCount++;
+    }
+
+    /**
+     * Restores the tree from a binary checkpoint file written by writeCheckpoint(Path).
+     */
+    public void readCheckpoint(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            readCheckpoint(channel);
+        }
+    }
+
+    private static ByteBuffer readCheckpointBytes(ReadableByteChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("The checkpoint is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Checks that the left and right children of the nodes, childNrs[2*i] and childNrs[2*i+1] for node i or -1 for
+     * none, give a binary tree of all nodes below the root.
+     */
+    private void checkCheckpointTree(int rootNr, int[] childNrs) throws IOException {
+        int[] parentNrs = new int[nodeCount];
+        Arrays.fill(parentNrs, -1);
+        for (int i=0; i<nodeCount; i++) {
+            if ((childNrs[2*i] < 0) != (childNrs[2*i+1] < 0)) {
+                throw new IOException("Node " + i + " of the checkpoint has one child");
+            }
+            for (int k=2*i; k<2*i+2; k++) {
+                int childNr = childNrs[k];
+                if (childNr < -1 || childNr >= nodeCount || childNr == rootNr ||
+                        (childNr >= 0 && parentNrs[childNr] >= 0)) {
+                    throw new IOException("Child " + childNr + " of node " + i + " of the checkpoint is not a node " +
+                            "or has another parent");
+                }
+                if (childNr >= 0) {
+                    parentNrs[childNr] = i;
+                }
+            }
+        }
+        // every node except the root has one parent, so all nodes are below the root unless there is a cycle
+        int[] stack = new int[nodeCount];
+        int stackSize = 0, reachedCount = 0;
+        stack[stackSize++] = rootNr;
+        while (stackSize > 0) {
+            int nodeNr = stack[--stackSize];
+            reachedCount++;
+            for (int k=2*nodeNr; k<2*nodeNr+2 && childNrs[k] >= 0; k++) {
+                stack[stackSize++] = childNrs[k];
+            }
+        }
+        if (reachedCount != nodeCount) {
+            throw new IOException("Only " + reachedCount + " of the " + nodeCount + " nodes of the checkpoint are " +
+                    "below the root");
+        }
+    }
+
+    /**
+     * @return the node numbers of every range, checked to be nodes that belong to one range only
+     */
+    private int[][] readCheckpointRanges(ReadableByteChannel channel) throws IOException {
+        int[][] rangeNodeNrs = new int[sRanges.size()][];
+        boolean[] inRange = new boolean[nodeCount];
+        for (int k=0; k<sRanges.size(); k++) {
+            int count = readCheckpointBytes(channel, 4).getInt();
+            if (count < 1 || count > nodeCount) {
+                throw new IOException("Range " + k + " of the checkpoint has " + count + " nodes");
+            }
+            ByteBuffer buffer = readCheckpointBytes(channel, 4*count);
+            rangeNodeNrs[k] = new int[count];
+            for (int i=0; i<count; i++) {
+                int nodeNr = buffer.getInt();
+                if (nodeNr < 0 || nodeNr >= nodeCount || inRange[nodeNr]) {
+                    throw new IOException("Node " + nodeNr + " of range " + k + " of the checkpoint is not a node " +
+                            "or belongs to another range");
+                }
+                inRange[nodeNr] = true;
+                rangeNodeNrs[k][i] = nodeNr;
+            }
+        }
+        return rangeNodeNrs;
+    }
+
 }
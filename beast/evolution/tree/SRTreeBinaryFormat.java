@@ -0,0 +1,74 @@
+package beast.evolution.tree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the binary traces of SRTreeBinaryLogger, read by SRTreeBinaryTraceReader.
+ *
+ * Header: the magic number, the version, the node count, the range count and the key frame interval as ints,
+ * followed by the IDs of all nodes (null for internal nodes) and the first occurrence IDs of all ranges.
+ *
+ * Sample: an int with the number of bytes of the rest of the sample, the sample number, the left and the right
+ * child of every node plus one (0 for no child), the bits of the height of every node XOR the bits of its height in
+ * the previous sample, and the number of nodes of every range followed by the node numbers in the order of the
+ * range. The first sample and every keyFrameInterval-th sample after it are key frames whose heights are XORed
+ * with 0. All numbers after the length of the sample are variable length integers, so that nodes that did not
+ * change their height since the previous sample take one byte.
+ */
+final class SRTreeBinaryFormat {
+
+    static final int MAGIC = 0x53525442;
+    static final int VERSION = 1;
+
+    private SRTreeBinaryFormat() {
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static void putString(ByteBuffer buffer, String string) {
+        if (string == null) {
+            putVarLong(buffer, 0);
+        } else {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            putVarLong(buffer, bytes.length + 1);
+            buffer.put(bytes);
+        }
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = (int) getVarLong(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the maximum number of bytes of a string written by putString
+     */
+    static int getMaxStringSize(String string) {
+        return string == null ? 1 : 5 + 3*string.length();
+    }
+
+}
@@ -0,0 +1,132 @@
+package beast.evolution.tree;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import sranges.StratigraphicRange;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes the sampled states of an SRTree to a binary trace in the layout described in SRTreeBinaryFormat, which
+ * is much smaller than Newick and keeps the nodes of the ranges in order. It is added to a logger like any other
+ * loggable and writes nothing to the log of the logger itself. The trace is read by SRTreeBinaryTraceReader.
+ */
+@Description("Logs the states of a stratigraphic range tree to a compact binary file with the range membership")
+public class SRTreeBinaryLogger extends BEASTObject implements Loggable {
+
+    public final Input<SRTree> treeInput = new Input<>("tree", "tree to be logged", Input.Validate.REQUIRED);
+    public final Input<String> fileNameInput = new Input<>("fileName", "name of the binary trace file",
+            Input.Validate.REQUIRED);
+    public final Input<Integer> keyFrameIntervalInput = new Input<>("keyFrameInterval", "number of samples between " +
+            "samples with heights not encoded relative to the previous sample, the reader decodes at most this number " +
+            "of samples to jump to a sample (default 100)", 100);
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long[] heightBits;
+    private int sampleCount;
+
+    @Override
+    public void initAndValidate() {
+        if (keyFrameIntervalInput.get() < 1) {
+            throw new RuntimeException("keyFrameInterval should be positive");
+        }
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        SRTree tree = treeInput.get();
+        int nodeCount = tree.getNodeCount();
+        List<StratigraphicRange> ranges = tree.getSRanges();
+
+        int headerSize = 20;
+        for (int i = 0; i < nodeCount; i++) {
+            headerSize += SRTreeBinaryFormat.getMaxStringSize(tree.getNode(i).getID());
+        }
+        for (StratigraphicRange range : ranges) {
+            headerSize += SRTreeBinaryFormat.getMaxStringSize(range.getFirstOccurrenceID());
+        }
+        // the length and the sample number, the children and the height of every node, and the ranges
+        int sampleSize = 14 + 20*nodeCount + 5*(ranges.size() + nodeCount);
+        buffer = ByteBuffer.allocate(Math.max(headerSize, sampleSize));
+        heightBits = new long[nodeCount];
+        sampleCount = 0;
+
+        buffer.clear();
+        buffer.putInt(SRTreeBinaryFormat.MAGIC);
+        buffer.putInt(SRTreeBinaryFormat.VERSION);
+        buffer.putInt(nodeCount);
+        buffer.putInt(ranges.size());
+        buffer.putInt(keyFrameIntervalInput.get());
+        for (int i = 0; i < nodeCount; i++) {
+            SRTreeBinaryFormat.putString(buffer, tree.getNode(i).getID());
+        }
+        for (StratigraphicRange range : ranges) {
+            SRTreeBinaryFormat.putString(buffer, range.getFirstOccurrenceID());
+        }
+        try {
+            channel = FileChannel.open(Paths.get(fileNameInput.get()), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            write();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the binary trace " + fileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void log(int sample, PrintStream out) {
+        SRTree tree = treeInput.get();
+        int nodeCount = tree.getNodeCount();
+        boolean isKeyFrame = sampleCount % keyFrameIntervalInput.get() == 0;
+
+        buffer.clear();
+        buffer.putInt(0);
+        SRTreeBinaryFormat.putVarLong(buffer, sample);
+        for (int i = 0; i < nodeCount; i++) {
+            Node node = tree.getNode(i);
+            SRTreeBinaryFormat.putVarLong(buffer, node.isLeaf() ? 0 : node.getLeft().getNr() + 1);
+            SRTreeBinaryFormat.putVarLong(buffer, node.isLeaf() ? 0 : node.getRight().getNr() + 1);
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            long bits = Double.doubleToLongBits(tree.getNode(i).getHeight());
+            SRTreeBinaryFormat.putVarLong(buffer, isKeyFrame ? bits : bits ^ heightBits[i]);
+            heightBits[i] = bits;
+        }
+        for (StratigraphicRange range : tree.getSRanges()) {
+            SRTreeBinaryFormat.putVarLong(buffer, range.getNodeNrCount());
+            range.forEachNodeNr(nodeNr -> SRTreeBinaryFormat.putVarLong(buffer, nodeNr));
+        }
+        buffer.putInt(0, buffer.position() - 4);
+        try {
+            write();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write the binary trace " + fileNameInput.get() + ": " + e.getMessage());
+        }
+        sampleCount++;
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot close the binary trace " + fileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package beast.evolution.tree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the binary traces written by SRTreeBinaryLogger. The file is memory mapped in windows of at most
+ * MAX_WINDOW_SIZE bytes so that traces larger than 2GB can be read. Opening the trace reads the lengths of all
+ * samples to index them, getSample(index) then decodes at most keyFrameInterval samples from the key frame before
+ * the sample, or only the sample itself if the previous sample was the last one read.
+ */
+public class SRTreeBinaryTraceReader implements Closeable {
+
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    /**
+     * A sampled state: the children and the parent of every node (-1 for none), the heights of the nodes and the
+     * node numbers of every range in the order of the range.
+     */
+    public static class Sample {
+        public final long sampleNr;
+        public final int[] leftChildNrs;
+        public final int[] rightChildNrs;
+        public final int[] parentNrs;
+        public final double[] heights;
+        public final int[][] rangeNodeNrs;
+
+        Sample(long sampleNr, int[] leftChildNrs, int[] rightChildNrs, int[] parentNrs, double[] heights, int[][] rangeNodeNrs) {
+            this.sampleNr = sampleNr;
+            this.leftChildNrs = leftChildNrs;
+            this.rightChildNrs = rightChildNrs;
+            this.parentNrs = parentNrs;
+            this.heights = heights;
+            this.rangeNodeNrs = rangeNodeNrs;
+        }
+
+        public int getRootNr() {
+            for (int i = 0; i < parentNrs.length; i++) {
+                if (parentNrs[i] < 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart, windowEnd;
+
+    private final int nodeCount;
+    private final int rangeCount;
+    private final int keyFrameInterval;
+    private final String[] nodeIDs;
+    private final String[] rangeIDs;
+
+    // offsets and lengths of the samples without their length fields
+    private long[] sampleOffsets = new long[16];
+    private int[] sampleLengths = new int[16];
+    private int sampleCount = 0;
+
+    // heights of the last sample read, the heights of the next sample are encoded relative to these
+    private final long[] heightBits;
+    private int lastSampleIndex = -1;
+
+    public SRTreeBinaryTraceReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileSize = channel.size();
+
+        if (fileSize < 20 || map(0, 4).getInt() != SRTreeBinaryFormat.MAGIC) {
+            channel.close();
+            throw new IOException(path + " is not a binary SRTree trace");
+        }
+        ByteBuffer header = map(4, 16);
+        int version = header.getInt();
+        if (version != SRTreeBinaryFormat.VERSION) {
+            channel.close();
+            throw new IOException("Unsupported version " + version + " of the binary SRTree trace " + path);
+        }
+        nodeCount = header.getInt();
+        rangeCount = header.getInt();
+        keyFrameInterval = header.getInt();
+        heightBits = new long[nodeCount];
+        nodeIDs = new String[nodeCount];
+        rangeIDs = new String[rangeCount];
+
+        // the size of the IDs is not known in advance, the window is enlarged until it holds all of them
+        long offset = 20;
+        long headerSize = 20 + 5L*(nodeCount + rangeCount);
+        while (true) {
+            ByteBuffer buffer = map(offset, Math.min(fileSize, headerSize) - offset);
+            try {
+                for (int i = 0; i < nodeCount; i++) {
+                    nodeIDs[i] = SRTreeBinaryFormat.getString(buffer);
+                }
+                for (int k = 0; k < rangeCount; k++) {
+                    rangeIDs[k] = SRTreeBinaryFormat.getString(buffer);
+                }
+                offset += buffer.position();
+                break;
+            } catch (BufferUnderflowException e) {
+                if (headerSize >= fileSize) {
+                    channel.close();
+                    throw new IOException("The header of the binary SRTree trace " + path + " is truncated");
+                }
+                headerSize *= 2;
+            }
+        }
+
+        // index the samples, a truncated last sample of a running analysis is ignored
+        while (offset + 4 <= fileSize) {
+            int length = map(offset, 4).getInt();
+            if (offset + 4 + length > fileSize) {
+                break;
+            }
+            if (sampleCount == sampleOffsets.length) {
+                sampleOffsets = Arrays.copyOf(sampleOffsets, 2*sampleCount);
+                sampleLengths = Arrays.copyOf(sampleLengths, 2*sampleCount);
+            }
+            sampleOffsets[sampleCount] = offset + 4;
+            sampleLengths[sampleCount] = length;
+            sampleCount++;
+            offset += 4 + length;
+        }
+    }
+
+    /**
+     * @return a buffer with the size bytes starting at offset, mapping a new window if they are not in the current one
+     */
+    private ByteBuffer map(long offset, long size) throws IOException {
+        if (window == null || offset < windowStart || offset + size > windowEnd) {
+            windowStart = offset;
+            windowEnd = Math.min(fileSize, offset + Math.max(size, MAX_WINDOW_SIZE));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+        }
+        ByteBuffer buffer = window.duplicate();
+        buffer.position((int) (offset - windowStart));
+        buffer.limit((int) (offset - windowStart + size));
+        return buffer.slice();
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * @return the ID of the node, null for internal nodes
+     */
+    public String getNodeID(int nodeNr) {
+        return nodeIDs[nodeNr];
+    }
+
+    /**
+     * @return the ID of the first occurrence of the range
+     */
+    public String getRangeID(int rangeNr) {
+        return rangeIDs[rangeNr];
+    }
+
+    public Sample getSample(int index) throws IOException {
+        if (index < 0 || index >= sampleCount) {
+            throw new IndexOutOfBoundsException("Sample " + index + " of " + sampleCount + " samples");
+        }
+        int start = index - index % keyFrameInterval;
+        if (lastSampleIndex >= start && lastSampleIndex < index) {
+            start = lastSampleIndex + 1;
+        }
+        for (int k = start; k < index; k++) {
+            readHeights(k);
+        }
+        return readSample(index);
+    }
+
+    /**
+     * updates heightBits to sample k without decoding the rest of the sample
+     */
+    private void readHeights(int k) throws IOException {
+        ByteBuffer buffer = map(sampleOffsets[k], sampleLengths[k]);
+        SRTreeBinaryFormat.getVarLong(buffer);
+        for (int i = 0; i < 2*nodeCount; i++) {
+            SRTreeBinaryFormat.getVarLong(buffer);
+        }
+        decodeHeights(buffer, k);
+        lastSampleIndex = k;
+    }
+
+    private void decodeHeights(ByteBuffer buffer, int k) {
+        boolean isKeyFrame = k % keyFrameInterval == 0;
+        for (int i = 0; i < nodeCount; i++) {
+            long bits = SRTreeBinaryFormat.getVarLong(buffer);
+            heightBits[i] = isKeyFrame ? bits : bits ^ heightBits[i];
+        }
+    }
+
+    private Sample readSample(int k) throws IOException {
+        ByteBuffer buffer = map(sampleOffsets[k], sampleLengths[k]);
+        long sampleNr = SRTreeBinaryFormat.getVarLong(buffer);
+        int[] leftChildNrs = new int[nodeCount];
+        int[] rightChildNrs = new int[nodeCount];
+        int[] parentNrs = new int[nodeCount];
+        Arrays.fill(parentNrs, -1);
+        for (int i = 0; i < nodeCount; i++) {
+            leftChildNrs[i] = (int) SRTreeBinaryFormat.getVarLong(buffer) - 1;
+            rightChildNrs[i] = (int) SRTreeBinaryFormat.getVarLong(buffer) - 1;
+            if (leftChildNrs[i] >= 0) {
+                parentNrs[leftChildNrs[i]] = i;
+            }
+            if (rightChildNrs[i] >= 0) {
+                parentNrs[rightChildNrs[i]] = i;
+            }
+        }
+        decodeHeights(buffer, k);
+        lastSampleIndex = k;
+        double[] heights = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            heights[i] = Double.longBitsToDouble(heightBits[i]);
+        }
+        int[][] rangeNodeNrs = new int[rangeCount][];
+        for (int r = 0; r < rangeCount; r++) {
+            rangeNodeNrs[r] = new int[(int) SRTreeBinaryFormat.getVarLong(buffer)];
+            for (int j = 0; j < rangeNodeNrs[r].length; j++) {
+                rangeNodeNrs[r][j] = (int) SRTreeBinaryFormat.getVarLong(buffer);
+            }
+        }
+        return new Sample(sampleNr, leftChildNrs, rightChildNrs, parentNrs, heights, rangeNodeNrs);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+}
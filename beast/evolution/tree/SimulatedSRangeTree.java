@@ -0,0 +1,337 @@
+package beast.evolution.tree;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.util.Randomizer;
+import sranges.StratigraphicRange;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A stratigraphic range tree simulated forward in time under the fossilized birth-death process with budding
+ * speciation and the parameters of SRangesBirthDeathModel.
+ *
+ * Every species is simulated from its origin to its extinction, removal or the present. Budding daughters are
+ * simulated depth first with an explicit stack, and a species is reduced to its sampled part as soon as it is
+ * finished: the first and the last occurrence and the branching nodes of daughters with samples. Unsampled
+ * lineages and the samples between the first and the last occurrence are never stored, so the memory used
+ * grows with the size of the sampled tree and the depth of the stack and not with the number of lineages.
+ *
+ * A species with two or more occurrences gets a range with the taxa <name>_first and <name>_last. A single fossil
+ * gets a single fossil range, a species only sampled at the present is a tip without a range. The branching nodes
+ * between the first and the last occurrence are added to the ranges, the ancestral species is always left.
+ */
+@Description("Stratigraphic range tree simulated under the fossilized birth-death process with budding speciation")
+public class SimulatedSRangeTree extends SRTree {
+
+    public Input<RealParameter> originInput = new Input<>("origin", "The time when the process started", Input.Validate.REQUIRED);
+    public Input<RealParameter> birthRateInput = new Input<>("birthRate", "Birth rate", Input.Validate.REQUIRED);
+    public Input<RealParameter> deathRateInput = new Input<>("deathRate", "Death rate", Input.Validate.REQUIRED);
+    public Input<RealParameter> samplingRateInput = new Input<>("samplingRate", "Sampling rate per individual", Input.Validate.REQUIRED);
+    public Input<RealParameter> removalProbabilityInput = new Input<>("removalProbability", "The probability of an " +
+            "individual to be removed from the process immediately after the sampling", Input.Validate.REQUIRED);
+    public Input<RealParameter> rhoInput = new Input<>("rho", "Probability of an individual to be sampled at present", Input.Validate.REQUIRED);
+    public Input<Boolean> conditionOnRhoSamplingInput = new Input<>("conditionOnRhoSampling", "if true, only trees " +
+            "with at least one sample at present are accepted", false);
+    public Input<Integer> minSampleCountInput = new Input<>("minSampleCount", "only trees with at least this many " +
+            "sampled leaves are accepted", 2);
+    public Input<Integer> maxAttemptsInput = new Input<>("maxAttempts", "the number of simulations to try before " +
+            "giving up on getting a tree that satisfies the condition", 1000);
+    public Input<Long> maxLineagesInput = new Input<>("maxLineages", "the simulation fails if more lineages than this " +
+            "are born in one attempt", 100000000L);
+
+    private double birthRate, deathRate, samplingRate, removalProbability, rho;
+
+    // the nodes of the current attempt in the order they were created
+    private final List<Node> simulatedLeaves = new ArrayList<>();
+    private final List<Node> simulatedInternalNodes = new ArrayList<>();
+    private final List<StratigraphicRange> simulatedSRanges = new ArrayList<>();
+    // the ranges of the last simulation, which were added to the stratigraphicRange input
+    private final List<StratigraphicRange> inputSRanges = new ArrayList<>();
+    private int sampledSpeciesCount;
+    private boolean hasExtantSample;
+    private long lineageCount;
+
+    /**
+     * A species in the simulation, with its samples and its daughters that have samples.
+     */
+    private static final class Species {
+        final double birthAge;
+        double age;
+        int fossilCount = 0;
+        double firstFossilAge, lastFossilAge;
+        boolean isExtantSampled = false;
+        // budding ages and sampled subtrees of the daughters, in the order of decreasing age
+        double[] daughterAges = new double[2];
+        Node[] daughters = new Node[2];
+        int daughterCount = 0;
+
+        Species(double birthAge) {
+            this.birthAge = birthAge;
+            this.age = birthAge;
+        }
+
+        void addFossil(double fossilAge) {
+            if (fossilCount == 0) {
+                firstFossilAge = fossilAge;
+            }
+            lastFossilAge = fossilAge;
+            fossilCount++;
+        }
+
+        void addDaughter(double buddingAge, Node daughter) {
+            if (daughterCount == daughters.length) {
+                daughterAges = Arrays.copyOf(daughterAges, 2 * daughterCount);
+                daughters = Arrays.copyOf(daughters, 2 * daughterCount);
+            }
+            daughterAges[daughterCount] = buddingAge;
+            daughters[daughterCount] = daughter;
+            daughterCount++;
+        }
+    }
+
+    @Override
+    public void initAndValidate() {
+        // the ranges of an earlier simulation are replaced when the tree is initialised again
+        if (!stratigraphicRangeInput.get().equals(inputSRanges)) {
+            throw new RuntimeException("The ranges of a simulated tree are simulated, do not specify stratigraphicRange inputs");
+        }
+        stratigraphicRangeInput.get().clear();
+        inputSRanges.clear();
+        birthRate = birthRateInput.get().getValue();
+        deathRate = deathRateInput.get().getValue();
+        samplingRate = samplingRateInput.get().getValue();
+        removalProbability = removalProbabilityInput.get().getValue();
+        rho = rhoInput.get().getValue();
+
+        Node simulatedRoot = null;
+        for (int attempts = 0; attempts < maxAttemptsInput.get() && simulatedRoot == null; ++attempts) {
+            simulatedRoot = simulate(originInput.get().getValue());
+            if (simulatedLeaves.size() < minSampleCountInput.get() ||
+                    (conditionOnRhoSamplingInput.get() && !hasExtantSample)) {
+                simulatedRoot = null;
+            }
+        }
+        if (simulatedRoot == null) {
+            throw new RuntimeException("Failed to simulate a tree with at least " + minSampleCountInput.get() +
+                    " samples in " + maxAttemptsInput.get() + " attempts");
+        }
+
+        setNodeNrs(simulatedRoot);
+        root = simulatedRoot;
+        leafNodeCount = simulatedLeaves.size();
+        internalNodeCount = simulatedInternalNodes.size();
+        nodeCount = leafNodeCount + internalNodeCount;
+        stratigraphicRangeInput.get().addAll(simulatedSRanges);
+        inputSRanges.addAll(simulatedSRanges);
+        simulatedLeaves.clear();
+        simulatedInternalNodes.clear();
+        simulatedSRanges.clear();
+
+        initArrays();
+        super.initAndValidate();
+        initSRanges();
+        addSRangeInternalNodes();
+    }
+
+    /**
+     * Simulates all species descending from the species that starts at the origin.
+     * @return the root of the sampled tree or null if nothing was sampled
+     */
+    private Node simulate(double origin) {
+        simulatedLeaves.clear();
+        simulatedInternalNodes.clear();
+        simulatedSRanges.clear();
+        sampledSpeciesCount = 0;
+        hasExtantSample = false;
+        lineageCount = 1;
+
+        double totalRate = birthRate + deathRate + samplingRate;
+        long maxLineages = maxLineagesInput.get();
+        Deque<Species> stack = new ArrayDeque<>();
+        stack.push(new Species(origin));
+        Node sampledRoot = null;
+        while (!stack.isEmpty()) {
+            Species species = stack.peek();
+            double eventAge = species.age - Randomizer.nextExponential(totalRate);
+            boolean finished = false;
+            if (eventAge <= 0.0) {
+                species.isExtantSampled = Randomizer.nextDouble() < rho;
+                finished = true;
+            } else {
+                species.age = eventAge;
+                double event = Randomizer.nextDouble() * totalRate;
+                if (event < birthRate) {
+                    if (++lineageCount > maxLineages) {
+                        throw new RuntimeException("More than " + maxLineagesInput.get() + " lineages were born, " +
+                                "increase maxLineages or use a smaller origin or birth rate");
+                    }
+                    stack.push(new Species(eventAge));
+                } else if (event < birthRate + deathRate) {
+                    finished = true;
+                } else {
+                    species.addFossil(eventAge);
+                    finished = Randomizer.nextDouble() < removalProbability;
+                }
+            }
+            if (finished) {
+                stack.pop();
+                Node subtree = reduce(species);
+                if (stack.isEmpty()) {
+                    sampledRoot = subtree;
+                } else if (subtree != null) {
+                    stack.peek().addDaughter(species.birthAge, subtree);
+                }
+            }
+        }
+        return sampledRoot;
+    }
+
+    /**
+     * Builds the sampled part of a finished species from the youngest to the oldest event.
+     * @return the root of the sampled subtree of the species and its daughters or null if nothing was sampled
+     */
+    private Node reduce(Species species) {
+        boolean hasRange = species.fossilCount > 0;
+        boolean isSingleFossil = species.fossilCount == 1 && !species.isExtantSampled;
+        String name = null, firstID = null, lastID = null;
+        if (hasRange || species.isExtantSampled) {
+            name = "s" + sampledSpeciesCount++;
+            firstID = isSingleFossil ? name : name + "_first";
+            lastID = isSingleFossil ? name : name + "_last";
+        }
+
+        Node below = null;
+        // ages of the occurrences that are still to be added, the last occurrence before the first one
+        double lastAge = Double.NaN, firstAge = Double.NaN;
+        if (species.isExtantSampled) {
+            hasExtantSample = true;
+            below = newLeaf(0.0, hasRange ? lastID : name);
+            if (hasRange) {
+                firstAge = species.firstFossilAge;
+            }
+        } else if (hasRange) {
+            lastAge = species.lastFossilAge;
+            if (!isSingleFossil) {
+                firstAge = species.firstFossilAge;
+            }
+        }
+
+        for (int k = species.daughterCount - 1; k >= -1; k--) {
+            double buddingAge = k >= 0 ? species.daughterAges[k] : Double.POSITIVE_INFINITY;
+            if (lastAge < buddingAge) {
+                below = addOccurrence(below, lastAge, lastID);
+                lastAge = Double.NaN;
+            }
+            if (firstAge < buddingAge) {
+                below = addOccurrence(below, firstAge, firstID);
+                firstAge = Double.NaN;
+            }
+            if (k >= 0) {
+                Node daughter = species.daughters[k];
+                if (below == null) {
+                    below = daughter;
+                } else {
+                    Node node = newInternalNode(buddingAge);
+                    node.setLeft(below);
+                    below.setParent(node);
+                    node.setRight(daughter);
+                    daughter.setParent(node);
+                    below = node;
+                }
+            }
+        }
+
+        if (hasRange) {
+            StratigraphicRange range = new StratigraphicRange();
+            Taxon first = new Taxon(firstID);
+            range.setInputValue("firstOccurrence", first);
+            range.setInputValue("lastOccurrence", isSingleFossil ? first : new Taxon(lastID));
+            simulatedSRanges.add(range);
+        }
+        return below;
+    }
+
+    /**
+     * adds a fossil above the sampled part of the species, as a tip if nothing below it was sampled and as a sampled
+     * ancestor otherwise
+     */
+    private Node addOccurrence(Node below, double age, String id) {
+        Node leaf = newLeaf(age, id);
+        if (below == null) {
+            return leaf;
+        }
+        Node fake = newInternalNode(age);
+        fake.setLeft(below);
+        below.setParent(fake);
+        fake.setRight(leaf);
+        leaf.setParent(fake);
+        return fake;
+    }
+
+    private Node newLeaf(double height, String id) {
+        Node node = newNode();
+        node.setHeight(height);
+        node.setID(id);
+        simulatedLeaves.add(node);
+        return node;
+    }
+
+    private Node newInternalNode(double height) {
+        Node node = newNode();
+        node.setHeight(height);
+        simulatedInternalNodes.add(node);
+        return node;
+    }
+
+    /**
+     * numbers the leaves and then the internal nodes in the order they were created, the root gets the last number
+     */
+    private void setNodeNrs(Node simulatedRoot) {
+        int nr = 0;
+        for (Node node : simulatedLeaves) {
+            node.setNr(nr++);
+        }
+        for (Node node : simulatedInternalNodes) {
+            node.setNr(nr++);
+        }
+        if (!simulatedRoot.isLeaf() && simulatedRoot.getNr() != nr - 1) {
+            Node last = simulatedInternalNodes.get(simulatedInternalNodes.size() - 1);
+            last.setNr(simulatedRoot.getNr());
+            simulatedRoot.setNr(nr - 1);
+        }
+    }
+
+    /**
+     * adds the branching nodes between the first and the last occurrence of every range, they are the nodes on the
+     * path from the last occurrence up to the first occurrence
+     */
+    private void addSRangeInternalNodes() {
+        int[] path = new int[4];
+        for (StratigraphicRange range : sRanges) {
+            if (range.isSingleFossilRange()) {
+                continue;
+            }
+            int firstNr = range.getFirstNodeNr();
+            int pathLength = 0;
+            for (Node node = m_nodes[range.getLastNodeNr()].getParent(); node.getNr() != firstNr; node = node.getParent()) {
+                if (pathLength == path.length) {
+                    path = Arrays.copyOf(path, 2 * pathLength);
+                }
+                path[pathLength++] = node.getNr();
+            }
+            int previousNr = firstNr;
+            for (int k = pathLength - 1; k >= 0; k--) {
+                range.addNodeNrAfter(previousNr, path[k]);
+                previousNr = path[k];
+            }
+        }
+        initStoredRanges();
+    }
+}
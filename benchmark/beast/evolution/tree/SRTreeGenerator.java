@@ -0,0 +1,218 @@
+package benchmark.beast.evolution.tree;
+
+import beast.evolution.alignment.Taxon;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRNode;
+import beast.evolution.tree.SRTree;
+import beast.evolution.tree.Tree;
+import sranges.StratigraphicRange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates stratigraphic range trees of a given size for the benchmarks.
+ *
+ * The tips are simulated under a coalescent with half of the tips extant and half of them fossils, then sampled
+ * ancestors and ranges are inserted on random branches. A range is a sampled ancestor for the first occurrence
+ * with the last occurrence directly below it, either as a tip or as another sampled ancestor. The other fossils,
+ * the sampled ancestors and the tips above 0, are single fossil ranges as the operators expect. The same seed always
+ * gives the same tree, the generator does not use Randomizer.
+ */
+public class SRTreeGenerator {
+
+    private final Random random;
+    // nodes that are not direct ancestors, a sampled ancestor or a range can be inserted on the branch above them
+    private final List<Node> branches = new ArrayList<>();
+    private final List<Node> leaves = new ArrayList<>();
+    private final List<Node> internalNodes = new ArrayList<>();
+    private final List<String> singleFossilIDs = new ArrayList<>();
+    private Node root;
+
+    private SRTreeGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @param nodeCount the number of nodes, rounded up to an odd number
+     * @param rangeFraction the fraction of the leaves that are first or last occurrences of ranges
+     * @param sampledAncestorFraction the fraction of the other leaves that are sampled ancestors
+     * @param seed the seed of the generator
+     * @return the tree with a stratigraphic range for every pair of first and last occurrences and for every other
+     * fossil
+     */
+    public static SRTree generate(int nodeCount, double rangeFraction, double sampledAncestorFraction, long seed) {
+        int leafCount = nodeCount / 2 + 1;
+        int rangeCount = (int) (rangeFraction * leafCount / 2);
+        int sampledAncestorCount = (int) (sampledAncestorFraction * (leafCount - 2 * rangeCount));
+        int tipCount = leafCount - 2 * rangeCount - sampledAncestorCount;
+        if (tipCount < 1) {
+            throw new IllegalArgumentException("A tree with " + nodeCount + " nodes has no room for " + rangeCount +
+                    " ranges and " + sampledAncestorCount + " sampled ancestors");
+        }
+        // the last occurrences of half of the ranges are tips
+        int tipRangeCount = rangeCount / 2;
+
+        SRTreeGenerator generator = new SRTreeGenerator(seed);
+        Node[] lastOccurrenceTips = generator.simulateCoalescent(tipCount, tipRangeCount);
+        for (int i = 0; i < tipRangeCount; i++) {
+            generator.insertRange(lastOccurrenceTips[i], i, true);
+        }
+        for (int i = tipRangeCount; i < rangeCount; i++) {
+            generator.insertRange(generator.randomBranch(), i, false);
+        }
+        for (int i = 0; i < sampledAncestorCount; i++) {
+            generator.insertSampledAncestor(generator.randomBranch(), "sa" + i);
+            generator.singleFossilIDs.add("sa" + i);
+        }
+
+        ArrayList<StratigraphicRange> sRanges = new ArrayList<>();
+        for (int i = 0; i < rangeCount; i++) {
+            StratigraphicRange range = new StratigraphicRange();
+            range.setInputValue("firstOccurrence", new Taxon("r" + i + "_first"));
+            range.setInputValue("lastOccurrence", new Taxon("r" + i + "_last"));
+            sRanges.add(range);
+        }
+        for (String id : generator.singleFossilIDs) {
+            StratigraphicRange range = new StratigraphicRange();
+            Taxon taxon = new Taxon(id);
+            range.setInputValue("firstOccurrence", taxon);
+            range.setInputValue("lastOccurrence", taxon);
+            sRanges.add(range);
+        }
+
+        SRTree tree = new SRTree();
+        tree.setInputValue("stratigraphicRange", sRanges);
+        tree.setInputValue("nodetype", SRNode.class.getName());
+        tree.assignFrom(generator.createTree());
+        return tree;
+    }
+
+    /**
+     * simulates the tips and the branching nodes, the first lastOccurrenceTipCount tips are named as last occurrences
+     * @return the tips that are last occurrences
+     */
+    private Node[] simulateCoalescent(int tipCount, int lastOccurrenceTipCount) {
+        Node[] tips = new Node[tipCount + lastOccurrenceTipCount];
+        for (int i = 0; i < tips.length; i++) {
+            tips[i] = newNode(random.nextBoolean() ? 0.0 : random.nextDouble(), true);
+            tips[i].setID(i < lastOccurrenceTipCount ? "r" + i + "_last" : "t" + (i - lastOccurrenceTipCount));
+            branches.add(tips[i]);
+            if (i >= lastOccurrenceTipCount && tips[i].getHeight() > 0.0) {
+                singleFossilIDs.add(tips[i].getID());
+            }
+        }
+        Node[] lastOccurrenceTips = Arrays.copyOf(tips, lastOccurrenceTipCount);
+
+        Node[] inactive = tips.clone();
+        Arrays.sort(inactive, Comparator.comparingDouble(Node::getHeight));
+        Node[] active = new Node[inactive.length];
+        int activeCount = 0;
+        int nextInactive = 0;
+        double height = 0.0;
+        while (activeCount + inactive.length - nextInactive > 1) {
+            double coalescentHeight = activeCount < 2 ? Double.POSITIVE_INFINITY :
+                    height - Math.log(1.0 - random.nextDouble()) / (activeCount * (activeCount - 1) / 2.0);
+            if (nextInactive < inactive.length && inactive[nextInactive].getHeight() <= coalescentHeight) {
+                height = inactive[nextInactive].getHeight();
+                active[activeCount++] = inactive[nextInactive++];
+            } else {
+                height = coalescentHeight;
+                int i = random.nextInt(activeCount);
+                Node left = active[i];
+                active[i] = active[--activeCount];
+                int j = random.nextInt(activeCount);
+                Node right = active[j];
+                Node parent = newNode(height, false);
+                parent.addChild(left);
+                parent.addChild(right);
+                active[j] = parent;
+                branches.add(parent);
+            }
+        }
+        root = activeCount == 1 ? active[0] : inactive[nextInactive];
+        return lastOccurrenceTips;
+    }
+
+    private Node randomBranch() {
+        return branches.get(random.nextInt(branches.size()));
+    }
+
+    /**
+     * @return a random height on the branch above the node, the branch above the root ends one time unit higher
+     */
+    private double randomHeightAbove(Node node) {
+        double lower = node.getHeight();
+        double upper = node.isRoot() ? lower + 1.0 : node.getParent().getHeight();
+        return lower + (upper - lower) * (0.05 + 0.9 * random.nextDouble());
+    }
+
+    private void insertRange(Node node, int rangeNr, boolean lastOccurrenceIsTip) {
+        if (!lastOccurrenceIsTip) {
+            node = insertSampledAncestor(node, "r" + rangeNr + "_last");
+        }
+        insertSampledAncestor(node, "r" + rangeNr + "_first");
+    }
+
+    /**
+     * inserts a fake node with a sampled ancestor on the branch above the node
+     * @return the fake node
+     */
+    private Node insertSampledAncestor(Node node, String id) {
+        double height = randomHeightAbove(node);
+        Node fake = newNode(height, false);
+        Node sampledAncestor = newNode(height, true);
+        sampledAncestor.setID(id);
+        branches.add(fake);
+
+        Node parent = node.getParent();
+        if (parent == null) {
+            root = fake;
+        } else if (parent.getLeft() == node) {
+            parent.setLeft(fake);
+            fake.setParent(parent);
+        } else {
+            parent.setRight(fake);
+            fake.setParent(parent);
+        }
+        // the lineage continues through the left child of the fake node
+        fake.setLeft(node);
+        node.setParent(fake);
+        fake.setRight(sampledAncestor);
+        sampledAncestor.setParent(fake);
+        return fake;
+    }
+
+    private Node newNode(double height, boolean isLeaf) {
+        Node node = new Node();
+        node.setHeight(height);
+        if (isLeaf) {
+            leaves.add(node);
+        } else {
+            internalNodes.add(node);
+        }
+        return node;
+    }
+
+    /**
+     * numbers the leaves before the internal nodes, the root gets the last number
+     */
+    private Tree createTree() {
+        int nr = 0;
+        for (Node leaf : leaves) {
+            leaf.setNr(nr++);
+        }
+        for (Node node : internalNodes) {
+            if (node != root) {
+                node.setNr(nr++);
+            }
+        }
+        if (!root.isLeaf()) {
+            root.setNr(nr);
+        }
+        return new Tree(root);
+    }
+}
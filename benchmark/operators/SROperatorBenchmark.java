@@ -0,0 +1,101 @@
+package benchmark.operators;
+
+import beast.core.Operator;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import benchmark.beast.evolution.tree.SRTreeGenerator;
+import operators.LeftRightChildSwap;
+import operators.SRRangeMove;
+import operators.SRWilsonBalding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the proposals of the tree operators together with the store, accept and restore steps of the
+ * chain around them.
+ *
+ * Every iteration starts from the same generated tree and the same Randomizer seed, so that the proposals of two
+ * runs are the same. Run with the GC profiler to get the bytes allocated per proposal, for example
+ * java -jar benchmarks.jar SROperatorBenchmark -prof gc -p operator=SRWilsonBalding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SROperatorBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int nodeCount;
+
+    // fraction of the leaves that are first or last occurrences of ranges
+    @Param({"0.0", "0.2", "0.5"})
+    public double rangeFraction;
+
+    @Param({"SRWilsonBalding", "SRRangeMove", "LeftRightChildSwap"})
+    public String operator;
+
+    private SRTree tree;
+    private beast.core.State state;
+    private Operator proposalOperator;
+    private int sample;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        tree = SRTreeGenerator.generate(nodeCount, rangeFraction, 0.1, 127);
+        state = new beast.core.State();
+        state.initByName("stateNode", tree);
+        state.initialise();
+        tree.setEverythingDirty(false);
+
+        if (operator.equals("SRWilsonBalding")) {
+            proposalOperator = new SRWilsonBalding();
+        } else if (operator.equals("SRRangeMove")) {
+            proposalOperator = new SRRangeMove();
+        } else if (operator.equals("LeftRightChildSwap")) {
+            proposalOperator = new LeftRightChildSwap();
+        } else {
+            throw new IllegalArgumentException("Unknown operator " + operator);
+        }
+        proposalOperator.initByName("tree", tree, "weight", 1.0);
+
+        Randomizer.setSeed(127);
+        sample = 0;
+    }
+
+    /**
+     * stores the state, makes a proposal and accepts it
+     */
+    @Benchmark
+    public double acceptedProposal() {
+        state.store(sample++);
+        double logHastingsRatio = proposalOperator.proposal();
+        tree.setEverythingDirty(false);
+        return logHastingsRatio;
+    }
+
+    /**
+     * stores the state, makes a proposal and restores the stored state
+     */
+    @Benchmark
+    public double rejectedProposal() {
+        state.store(sample++);
+        double logHastingsRatio = proposalOperator.proposal();
+        state.restore();
+        tree.setEverythingDirty(false);
+        return logHastingsRatio;
+    }
+}
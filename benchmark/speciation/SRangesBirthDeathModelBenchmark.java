@@ -0,0 +1,101 @@
+package benchmark.speciation;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.SRTree;
+import benchmark.beast.evolution.tree.SRTreeGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import speciation.SRangesBirthDeathModel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of SRangesBirthDeathModel.calculateTreeLogLikelihood on generated trees.
+ *
+ * Run with the GC profiler to get the allocation rate next to the time per operation, for example
+ * java -jar benchmarks.jar SRangesBirthDeathModelBenchmark -prof gc -p nodeCount=1000,100000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SRangesBirthDeathModelBenchmark {
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int nodeCount;
+
+    // fraction of the leaves that are first or last occurrences of ranges
+    @Param({"0.0", "0.2", "0.5"})
+    public double rangeFraction;
+
+    // fraction of the other leaves that are sampled ancestors
+    @Param({"0.0", "0.2"})
+    public double sampledAncestorFraction;
+
+    // full: default calculation, incremental and compileTree: the inputs of the model with the same names,
+    // parallel: the parallel calculation for all tree sizes
+    @Param({"full", "incremental", "compileTree", "parallel"})
+    public String mode;
+
+    private SRTree tree;
+    private SRangesBirthDeathModel model;
+    private RealParameter birthRate;
+    private boolean birthRateChanged;
+
+    @Setup
+    public void setUp() {
+        tree = SRTreeGenerator.generate(nodeCount, rangeFraction, sampledAncestorFraction, 127);
+        birthRate = new RealParameter("1.5");
+
+        model = new SRangesBirthDeathModel();
+        model.setInputValue("tree", tree);
+        model.setInputValue("origin", new RealParameter(Double.toString(tree.getRoot().getHeight() + 1.0)));
+        model.setInputValue("birthRate", birthRate);
+        model.setInputValue("deathRate", new RealParameter("0.5"));
+        model.setInputValue("samplingRate", new RealParameter("0.1"));
+        model.setInputValue("removalProbability", new RealParameter("0.0"));
+        model.setInputValue("rho", new RealParameter("0.5"));
+        model.setInputValue("incremental", mode.equals("incremental"));
+        model.setInputValue("compileTree", mode.equals("compileTree"));
+        model.setInputValue("parallel", mode.equals("parallel"));
+        model.setInputValue("parallelThreshold", 0);
+        model.initAndValidate();
+
+        // the state after the first step of a chain, the tree is clean and the model has its cached terms
+        double logP = model.calculateTreeLogLikelihood(tree);
+        if (Double.isNaN(logP) || Double.isInfinite(logP)) {
+            throw new RuntimeException("The generated tree has log likelihood " + logP);
+        }
+        model.store();
+        tree.setEverythingDirty(false);
+    }
+
+    /**
+     * calculates the likelihood of an unchanged tree with unchanged parameters
+     */
+    @Benchmark
+    public double calculateTreeLogLikelihood() {
+        return model.calculateTreeLogLikelihood(tree);
+    }
+
+    /**
+     * changes the birth rate before every calculation, so that the terms of all nodes and ranges are recalculated
+     */
+    @Benchmark
+    public double calculateTreeLogLikelihoodAfterRateChange() {
+        birthRateChanged = !birthRateChanged;
+        birthRate.setValue(birthRateChanged ? 1.6 : 1.5);
+        return model.calculateTreeLogLikelihood(tree);
+    }
+}
@@ -3,6 +3,7 @@ package operators;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.SRTree;
 import beast.util.Randomizer;
+import sranges.PerformanceCounter;
 
 import java.util.ArrayList;
 
@@ -20,6 +21,13 @@ public class LeftRightChildSwap extends SRTreeOperator {
      */
     @Override
     public double proposal() {
+        long startTime = PerformanceCounter.start(proposalCounter);
+        double logHastingsRatio = propose();
+        PerformanceCounter.stop(proposalCounter, startTime, logHastingsRatio);
+        return logHastingsRatio;
+    }
+
+    private double propose() {
 
         SRTree tree = treeInput.get(this);
 
@@ -28,13 +36,16 @@ public class LeftRightChildSwap extends SRTreeOperator {
 
         Node node = null;
 
+        int iterationCount = 0;
         for (int i=0; i<5; i++) {
+            iterationCount++;
             node = tree.getNode(Randomizer.nextInt(nodeCount));
             if (!node.isLeaf() && !node.isFake() && !tree.belongToSameSRange(node.getNr(), node.getLeft().getNr())) {
                 break;
             }
             node = null;
         }
+        PerformanceCounter.addIterations(proposalCounter, iterationCount);
 
 
         if (node == null) {
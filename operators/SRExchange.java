@@ -0,0 +1,108 @@
+package operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRTree;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+import sranges.PerformanceCounter;
+
+/**
+ * Exchange operator for stratigraphic range trees. Two subtrees i and j with parents iP and jP are exchanged:
+ * i becomes the child of jP on the side j was on and j the child of iP on the side i was on, so that the budding
+ * orientation of all edges is kept. Both nodes are drawn from the movable nodes of the tree, which are not the root,
+ * not sampled ancestors on zero branches and not internal nodes of a range, so the exchange never cuts a range or
+ * moves a sampled ancestor, and it does not change the set of movable nodes. The narrow exchange swaps i with the
+ * sibling of its parent, the wide exchange swaps two random movable nodes. The proposal is rejected if a node would
+ * end up above its new parent. Both proposals are symmetric.
+ */
+@Description("Exchanges two subtrees of a stratigraphic range tree keeping the ranges and the budding orientation")
+public class SRExchange extends SRTreeOperator {
+
+    public final Input<Boolean> isNarrowInput = new Input<>("isNarrow", "if true (default) a node is exchanged " +
+            "with the sibling of its parent, otherwise with a random node", true);
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    /**
+     * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
+     */
+    @Override
+    public double proposal() {
+        long startTime = PerformanceCounter.start(proposalCounter);
+        double logHastingsRatio = isNarrowInput.get() ? narrow() : wide();
+        PerformanceCounter.stop(proposalCounter, startTime, logHastingsRatio);
+        return logHastingsRatio;
+    }
+
+    private double narrow() {
+        SRTree tree = treeInput.get(this);
+
+        int movableNodeCount = tree.getMovableNodeCount();
+        if (movableNodeCount == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Node i = tree.getNode(tree.getMovableNodeNr(Randomizer.nextInt(movableNodeCount)));
+        Node iP = i.getParent();
+        Node iGrandParent = iP.getParent();
+        if (iGrandParent == null) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Node iUncle = getOtherChild(iGrandParent, iP);
+
+        // the reverse move draws the uncle and finds i as its uncle
+        if (!tree.isMovableNode(iUncle) || iUncle.getHeight() >= iP.getHeight()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        exchangeNodes(i, iUncle, iP, iGrandParent);
+        return 0.0;
+    }
+
+    private double wide() {
+        SRTree tree = treeInput.get(this);
+
+        int movableNodeCount = tree.getMovableNodeCount();
+        if (movableNodeCount < 2) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Node i = tree.getNode(tree.getMovableNodeNr(Randomizer.nextInt(movableNodeCount)));
+        Node j = tree.getNode(tree.getMovableNodeNr(Randomizer.nextInt(movableNodeCount)));
+        Node iP = i.getParent();
+        Node jP = j.getParent();
+
+        // the heights also exclude exchanging a node with one of its ancestors
+        if (i == j || iP == jP || j.getHeight() >= iP.getHeight() || i.getHeight() >= jP.getHeight()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        exchangeNodes(i, j, iP, jP);
+        return 0.0;
+    }
+
+    /**
+     * puts i in the place of j under jP and j in the place of i under iP
+     */
+    private void exchangeNodes(Node i, Node j, Node iP, Node jP) {
+        boolean iLeft = iP.getLeft() == i;
+        boolean jLeft = jP.getLeft() == j;
+        if (iLeft) {
+            iP.setLeft(j);
+        } else {
+            iP.setRight(j);
+        }
+        if (jLeft) {
+            jP.setLeft(i);
+        } else {
+            jP.setRight(i);
+        }
+        j.setParent(iP);
+        i.setParent(jP);
+        iP.makeDirty(Tree.IS_FILTHY);
+        jP.makeDirty(Tree.IS_FILTHY);
+        i.makeDirty(Tree.IS_FILTHY);
+        j.makeDirty(Tree.IS_FILTHY);
+    }
+
+}
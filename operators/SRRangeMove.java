@@ -0,0 +1,60 @@
+package operators;
+
+import beast.core.Description;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import sranges.StratigraphicRange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wilson-Balding move of a whole stratigraphic range. The subtree below the first node of a range, which holds all
+ * nodes of the range and the lineages budding off it, is pruned and regrafted in one proposal in the same way as by
+ * SRWilsonBalding. SRWilsonBalding draws the node to move from all movable nodes, so a range is moved rarely in trees
+ * with many nodes. Here the range is drawn from the ranges with more than one occurrence. Their number does not change,
+ * so the only difference in the Hastings ratio is that the ratio of the candidate counts is 1. The proposal is
+ * rejected if the first node of the drawn range is the root.
+ */
+@Description("Prunes and regrafts a whole stratigraphic range with the lineages budding off it")
+public class SRRangeMove extends SRWilsonBalding {
+
+    // the ranges with more than one occurrence, found when first needed because the operator can be initialised
+    // before the tree builds its ranges, and found again when the tree rebuilds them
+    private List<Integer> multiOccurrenceRangeNrs = null;
+    private int sRangesInitCount;
+
+    @Override
+    public void initAndValidate() {
+        multiOccurrenceRangeNrs = null;
+    }
+
+    private List<Integer> getMultiOccurrenceRangeNrs(SRTree tree) {
+        if (multiOccurrenceRangeNrs == null || sRangesInitCount != tree.getSRangesInitCount()) {
+            multiOccurrenceRangeNrs = new ArrayList<>();
+            List<StratigraphicRange> ranges = tree.getSRanges();
+            for (int rangeNr=0; rangeNr<ranges.size(); rangeNr++) {
+                if (!ranges.get(rangeNr).isSingleFossilRange()) {
+                    multiOccurrenceRangeNrs.add(rangeNr);
+                }
+            }
+            sRangesInitCount = tree.getSRangesInitCount();
+        }
+        return multiOccurrenceRangeNrs;
+    }
+
+    @Override
+    protected int getCandidateCount(SRTree tree) {
+        return getMultiOccurrenceRangeNrs(tree).size();
+    }
+
+    @Override
+    protected Node chooseNode(SRTree tree) {
+        List<Integer> rangeNrs = getMultiOccurrenceRangeNrs(tree);
+        int rangeNr = rangeNrs.get(Randomizer.nextInt(rangeNrs.size()));
+        Node node = tree.getNode(tree.getSRanges().get(rangeNr).getFirstNodeNr());
+        return tree.isMovableNode(node) ? node : null;
+    }
+
+}
@@ -0,0 +1,116 @@
+package operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import sranges.PerformanceCounter;
+
+/**
+ * Scale operator for stratigraphic range trees. The heights of all bifurcations, or of the root only, are multiplied
+ * by a scale drawn uniformly from [scaleFactor, 1/scaleFactor]. Leaves and fake nodes keep their heights, which are
+ * sampling times. Scaling keeps the order of the scaled nodes, so a node can only pass one of its fixed neighbours:
+ * the proposal is rejected before the tree is changed if a bifurcation would not stay above its leaf and fake node
+ * children and below a fake node parent. This keeps the order of the nodes of every range, which are a chain of
+ * parents and left children from the first to the last occurrence.
+ */
+@Description("Scales the bifurcations of a stratigraphic range tree keeping the sampling times and the ranges")
+public class SRScaleOperator extends SRTreeOperator {
+
+    public final Input<Double> scaleFactorInput = new Input<>("scaleFactor", "scaling factor: the scale is drawn " +
+            "uniformly between scaleFactor and 1/scaleFactor (default 0.75)", 0.75);
+    public final Input<Boolean> rootOnlyInput = new Input<>("rootOnly", "scale the root only (default false)", false);
+    public final Input<Boolean> optimiseInput = new Input<>("optimise", "flag indicating whether to optimise the " +
+            "scale factor (default true)", true);
+
+    private double scaleFactor;
+
+    @Override
+    public void initAndValidate() {
+        scaleFactor = scaleFactorInput.get();
+        if (scaleFactor <= 0.0 || scaleFactor >= 1.0) {
+            throw new RuntimeException("scaleFactor should be between 0 and 1");
+        }
+    }
+
+    /**
+     * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
+     */
+    @Override
+    public double proposal() {
+        long startTime = PerformanceCounter.start(proposalCounter);
+        double logHastingsRatio = propose();
+        PerformanceCounter.stop(proposalCounter, startTime, logHastingsRatio);
+        return logHastingsRatio;
+    }
+
+    private double propose() {
+        SRTree tree = treeInput.get(this);
+        double scale = scaleFactor + Randomizer.nextDouble()*(1.0/scaleFactor - scaleFactor);
+
+        if (rootOnlyInput.get()) {
+            Node root = tree.getRoot();
+            if (root.isLeaf() || root.isFake() || !canScale(root, scale)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            root.setHeight(root.getHeight()*scale);
+            return -Math.log(scale);
+        }
+
+        int scaledNodeCount = 0;
+        for (int nodeNr=tree.getLeafNodeCount(); nodeNr<tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            if (!node.isFake()) {
+                if (!canScale(node, scale)) {
+                    return Double.NEGATIVE_INFINITY;
+                }
+                scaledNodeCount++;
+            }
+        }
+        if (scaledNodeCount == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        for (int nodeNr=tree.getLeafNodeCount(); nodeNr<tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            if (!node.isFake()) {
+                node.setHeight(node.getHeight()*scale);
+            }
+        }
+        return Math.log(scale)*(scaledNodeCount - 2);
+    }
+
+    /**
+     * @return true if the scaled bifurcation stays above its children and below its parent that are not scaled
+     */
+    private boolean canScale(Node node, double scale) {
+        double height = node.getHeight()*scale;
+        for (Node child : node.getChildren()) {
+            if ((child.isLeaf() || child.isFake() || rootOnlyInput.get()) && height <= child.getHeight()) {
+                return false;
+            }
+        }
+        Node parent = node.getParent();
+        return parent == null || !parent.isFake() || height < parent.getHeight();
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimiseInput.get()) {
+            double delta = calcDelta(logAlpha);
+            delta += Math.log(1.0/scaleFactor - 1.0);
+            setCoercableParameterValue(1.0/(Math.exp(delta) + 1.0));
+        }
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return scaleFactor;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        scaleFactor = Math.max(Math.min(value, 1.0 - 1e-8), 1e-8);
+    }
+
+}
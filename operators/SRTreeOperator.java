@@ -5,6 +5,7 @@ import beast.core.Operator;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 import beast.evolution.tree.SRTree;
+import sranges.PerformanceCounter;
 
 /**
  * copy from TreeOperator.
@@ -15,6 +16,33 @@ abstract public class SRTreeOperator extends Operator {
     final public Input<Boolean> markCladesInput = new Input<>("markclades", "Mark all ancestors of nodes changed by the operator as changed," +
             " up to the MRCA of all nodes changed by the operator.", false);
 
+    /**
+     * counts and times the proposals when set by a PerformanceLogger, null otherwise
+     */
+    protected PerformanceCounter proposalCounter = null;
+
+    public void setProposalCounter(PerformanceCounter counter) {
+        proposalCounter = counter;
+    }
+
+    @Override
+    public void accept() {
+        super.accept();
+        PerformanceCounter.accept(proposalCounter);
+    }
+
+    /**
+     * @param reason -2 if the proposal returned Double.NEGATIVE_INFINITY, which the counter counts as a failure
+     * rather than as a rejection
+     */
+    @Override
+    public void reject(final int reason) {
+        super.reject(reason);
+        if (reason != -2) {
+            PerformanceCounter.reject(proposalCounter);
+        }
+    }
+
     /**
      * @param parent the parent
      * @param child  the child that you want the sister of
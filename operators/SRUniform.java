@@ -0,0 +1,53 @@
+package operators;
+
+import beast.core.Description;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import sranges.PerformanceCounter;
+
+/**
+ * Uniform height operator for stratigraphic range trees. A bifurcation other than the root gets a new height drawn
+ * uniformly between its older child and its parent. The nodes of a range are a chain of parents and left children, so
+ * keeping every node between its children and its parent keeps the first occurrence above the internal nodes of the
+ * range and these above the last occurrence. Fake nodes are rejected, their heights are the sampling times of their
+ * sampled ancestors. The candidates are the internal nodes, which are numbered after the leaves, so a node is drawn and
+ * its bounds are found in constant time. The proposal is symmetric.
+ */
+@Description("Moves the height of a bifurcation of a stratigraphic range tree uniformly between its children and its parent")
+public class SRUniform extends SRTreeOperator {
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    /**
+     * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
+     */
+    @Override
+    public double proposal() {
+        long startTime = PerformanceCounter.start(proposalCounter);
+        double logHastingsRatio = propose();
+        PerformanceCounter.stop(proposalCounter, startTime, logHastingsRatio);
+        return logHastingsRatio;
+    }
+
+    private double propose() {
+        SRTree tree = treeInput.get(this);
+
+        int internalNodeCount = tree.getInternalNodeCount();
+        if (internalNodeCount == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Node node = tree.getNode(tree.getLeafNodeCount() + Randomizer.nextInt(internalNodeCount));
+        if (node.isRoot() || node.isFake()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        double upper = node.getParent().getHeight();
+        node.setHeight(lower + Randomizer.nextDouble()*(upper - lower));
+        return 0.0;
+    }
+
+}
@@ -3,11 +3,10 @@ package operators;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 import beast.util.Randomizer;
+import sranges.PerformanceCounter;
 import sranges.StratigraphicRange;
 import beast.evolution.tree.SRTree;
 
-import java.util.ArrayList;
-
 /**
  *@author Alexandra Gavryushkina
  */
@@ -17,11 +16,44 @@ public class SRWilsonBalding extends SRTreeOperator {
     public void initAndValidate() {
     }
 
+    /**
+     * @return the number of nodes chooseNode draws from, the ratio of these numbers before and after the move is part
+     * of the Hastings ratio
+     */
+    protected int getCandidateCount(SRTree tree) {
+        return tree.getMovableNodeCount();
+    }
+
+    /**
+     * @return the root of the subtree to move drawn uniformly from the candidates, or null if the drawn candidate
+     * cannot be moved
+     */
+    protected Node chooseNode(SRTree tree) {
+        //the node is not the root, it is not a sampled ancestor on a zero branch, it is not an internal node of a
+        // stratigraphic range
+        return tree.getNode(tree.getMovableNodeNr(Randomizer.nextInt(tree.getMovableNodeCount())));
+    }
+
+    /**
+     * @return true if the branch above the node is one of the candidates counted by
+     * SRTree.getAttachmentEdgeCountAbove(height)
+     */
+    private boolean isAttachmentEdgeAbove(Node node, double height) {
+        return !node.isDirectAncestor() && (node.isRoot() || node.getParent().getHeight() > height);
+    }
+
     /**
      * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
      */
     @Override
     public double proposal() {
+        long startTime = PerformanceCounter.start(proposalCounter);
+        double logHastingsRatio = propose();
+        PerformanceCounter.stop(proposalCounter, startTime, logHastingsRatio);
+        return logHastingsRatio;
+    }
+
+    private double propose() {
 
         SRTree tree = treeInput.get(this);
 
@@ -33,31 +65,22 @@ public class SRWilsonBalding extends SRTreeOperator {
         // choose a random node avoiding root and leaves that are direct ancestors
         int nodeCount = tree.getNodeCount();
 
-        ArrayList<Integer> allowableNodeIndices = new ArrayList<Integer>();
-        ArrayList<Integer> sRangeInternalNodeNrs = tree.getSRangesInternalNodeNrs();
-
-        for (int index=0; index<nodeCount; index++) {
-            Node node = tree.getNode(index);
-            //the node is not the root, it is not a sampled ancestor on a zero branch, it is not an internal node of a
-            // stratigraphic range
-            if (!node.isRoot() && !node.isDirectAncestor() && !sRangeInternalNodeNrs.contains(node.getNr()))
-                allowableNodeIndices.add(index);
-        }
-
         Node i;
 
 //        do {
 //            i = tree.getNode(Randomizer.nextInt(nodeCount));
 //        } while (i.isRoot() || i.isDirectAncestor());
 
-
-        int allowableNodeCount = allowableNodeIndices.size();
+        int allowableNodeCount = getCandidateCount(tree);
 
         if (allowableNodeCount == 0) {
             return Double.NEGATIVE_INFINITY;
         }
 
-        i=tree.getNode(allowableNodeIndices.get(Randomizer.nextInt(allowableNodeCount)));
+        i = chooseNode(tree);
+        if (i == null) {
+            return Double.NEGATIVE_INFINITY;
+        }
 
         Node iP = i.getParent();
         Node CiP;
@@ -78,38 +101,51 @@ public class SRWilsonBalding extends SRTreeOperator {
 
         final int leafNodeCount = tree.getLeafNodeCount();
 
-        if (leafNodeCount != tree.getExternalNodes().size()) {
-            System.out.println("node counts are incorrect. NodeCount = " + nodeCount + " leafNodeCount = " + leafNodeCount + " exteranl node count = " + tree.getExternalNodes().size());
+        if (leafNodeCount != tree.getExternalNodeCount()) {
+            System.out.println("node counts are incorrect. NodeCount = " + nodeCount + " leafNodeCount = " + leafNodeCount + " exteranl node count = " + tree.getExternalNodeCount());
         }
 
-        // make sure that the target branch <jP, j> or target leaf j is above the subtree being moved
+        // make sure that the target branch <jP, j> or target leaf j is above the subtree being moved:
+        // the candidates are the branches <jP, j> with jP above i and the leaves j above i that are not sampled
+        // ancestors, drawn uniformly excluding the branch above i and, unless i is pruned from a sampled ancestor,
+        // the branches adjacent to iP
+
+        double height = i.getHeight();
+        int edgeCount = tree.getAttachmentEdgeCountAbove(height);
+        int candidateCount = edgeCount + tree.getAttachmentLeafCountAbove(height);
+        int excludedCount = isAttachmentEdgeAbove(i, height) ? 1 : 0;
+        if (!CiP.isDirectAncestor()) {
+            excludedCount += isAttachmentEdgeAbove(CiP, height) ? 1 : 0;
+            excludedCount += isAttachmentEdgeAbove(iP, height) ? 1 : 0;
+        }
+        if (candidateCount == excludedCount) {
+            return Double.NEGATIVE_INFINITY;
+        }
 
         int nodeNumber;
-        double newParentHeight;
         boolean attachingToLeaf;
         boolean adjacentEdge;
         //boolean adjacentLeaf;
+        int iterationCount = 0;
         do {
+            iterationCount++;
             adjacentEdge = false;
             //adjacentLeaf = false;
-            nodeNumber = Randomizer.nextInt(nodeCount + leafNodeCount);
-            if (nodeNumber < nodeCount) {
-                j = tree.getNode(nodeNumber);
+            nodeNumber = Randomizer.nextInt(candidateCount);
+            if (nodeNumber < edgeCount) {
+                j = tree.getNode(tree.getAttachmentEdgeNrAbove(height, nodeNumber));
                 jP = j.getParent();
-                if (jP != null)
-                    newParentHeight = jP.getHeight();
-                else newParentHeight = Double.POSITIVE_INFINITY;
                 if (!CiP.isDirectAncestor())
                     adjacentEdge = (CiP.getNr() == j.getNr() || iP.getNr() == j.getNr());
                 attachingToLeaf = false;
             } else {
-                j = tree.getExternalNodes().get(nodeNumber - nodeCount);
+                j = tree.getNode(tree.getAttachmentLeafNrAbove(height, nodeNumber - edgeCount));
                 jP = j.getParent();
-                newParentHeight = j.getHeight();
                 attachingToLeaf = true;
                 //adjacentLeaf = (iP.getNr() == j.getNr());
             }
-        } while (j.isDirectAncestor() || (newParentHeight <= i.getHeight()) || (i.getNr() == j.getNr()) || adjacentEdge /*|| adjacentLeaf */);
+        } while ((i.getNr() == j.getNr()) || adjacentEdge /*|| adjacentLeaf */);
+        PerformanceCounter.addIterations(proposalCounter, iterationCount);
 
 
         if (attachingToLeaf && iP.getNr() == j.getNr()) {
@@ -132,7 +168,7 @@ public class SRWilsonBalding extends SRTreeOperator {
 
         //classify the type of move being performed before changing the tree structure
         boolean pruningFromSA = CiP.isDirectAncestor();
-        boolean pruningFromSRange = !CiP.isDirectAncestor() && sRangeInternalNodeNrs.contains(iP.getNr());
+        boolean pruningFromSRange = !CiP.isDirectAncestor() && tree.isSRangeInternalNode(iP.getNr());
         if (pruningFromSRange || pruningFromSA) {
             pruningRange = tree.getRangeOfNode(iP);
         }
@@ -290,14 +326,18 @@ public class SRWilsonBalding extends SRTreeOperator {
 
         //newDimension = nodeCount - tree.getDirectAncestorNodeCount() - 1;
 
-        newDimension = 0;
-        sRangeInternalNodeNrs = tree.getSRangesInternalNodeNrs();
-        for (int index=0; index<nodeCount; index++) {
-            Node node = tree.getNode(index);
-            //the node is not the root, it is not a sampled ancestor on a zero branch, it is not an internal node of a stratigraphic range
-            if (!node.isRoot() && !node.isDirectAncestor() && !sRangeInternalNodeNrs.contains(node.getNr()))
-                newDimension++;
+        // the root and sampled ancestor status can only change for the nodes involved in the move
+        tree.updateMovableNode(i.getNr());
+        tree.updateMovableNode(iP.getNr());
+        tree.updateMovableNode(CiP.getNr());
+        tree.updateMovableNode(j.getNr());
+        if (jP != null) {
+            tree.updateMovableNode(jP.getNr());
+        }
+        if (PiP != null) {
+            tree.updateMovableNode(PiP.getNr());
         }
+        newDimension = getCandidateCount(tree);
         dimensionCoefficient = (double) oldDimension / newDimension;
 
 //        for (StratigraphicRange range:sRangeSet.getRanges()) {
@@ -1,13 +1,18 @@
 package speciation;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import beast.core.BEASTInterface;
 import beast.core.Citation;
 import beast.core.Description;
+import beast.core.Input;
 
 import beast.evolution.speciation.SABirthDeathModel;
 import beast.evolution.tree.*;
+import sranges.PerformanceCounter;
 import sranges.StratigraphicRange;
 
 /**
@@ -22,41 +27,374 @@ import sranges.StratigraphicRange;
         "Bayesian total-evidence dating under the fossilized birth-death model with stratigraphic ranges.")
 public class SRangesBirthDeathModel extends SABirthDeathModel {
 
+    public Input<Boolean> incrementalInput = new Input<>("incremental", "if true, the contributions of nodes and " +
+            "ranges are cached and only the ones affected by the last tree change are recalculated (default false)", false);
+
+    public Input<Boolean> checkIncrementalInput = new Input<>("checkIncremental", "debug flag: if true, the result of " +
+            "the incremental calculation is compared to the full recalculation (default false)", false);
+
+    public Input<Boolean> compileTreeInput = new Input<>("compileTree", "if true, the heights of the tree are " +
+            "compiled into flat arrays grouped by term type every time the tree changes and evaluations that only " +
+            "follow parameter changes are calculated from these arrays. Together with incremental, tree changes are " +
+            "calculated incrementally and the tree is compiled on the first evaluation after them that only follows " +
+            "parameter changes (default false)", false);
+
+    public Input<Boolean> parallelInput = new Input<>("parallel", "if true, the contributions of nodes and ranges of " +
+            "trees with at least parallelThreshold nodes are calculated in parallel fork-join chunks, the result does " +
+            "not depend on the number of threads. Not used in the incremental and compileTree modes (default false)", false);
+
+    public Input<Integer> parallelThresholdInput = new Input<>("parallelThreshold", "the minimum number of nodes of " +
+            "a tree for the parallel calculation (default 50000)", 50000);
+
+    // tolerance (relative to the magnitude of the log likelihood) for checkIncremental
+    private static final double INCREMENTAL_TOLERANCE = 1e-12;
+    private static final double LOG_2 = Math.log(2);
+    // number of nodes or ranges summed by one fork-join task of the parallel mode
+    public static final int PARALLEL_CHUNK_SIZE = 4096;
+
+    // contributions of nodes and ranges used in the incremental mode
+    private double[] nodeTerms;
+    private double[] rangeTerms;
+    // heights of the first occurrence, the last occurrence and the end of the ancestral range (or -1 if there is
+    // no ancestral range) the range terms were calculated for
+    private double[] rangeFirstHeights;
+    private double[] rangeLastHeights;
+    private double[] rangeAncestralLastHeights;
+    private double termsSum;
+    private int updatesSinceSum;
+    private boolean termsValid = false;
+    // parameter values and tree state the terms were calculated for
+    private double termsLambda, termsMu, termsPsi, termsRho, termsR, termsC1, termsC2;
+    private int termsSRangesInitCount;
+
+    // nodes whose terms have to be recalculated
+    private boolean[] isMarkedNode;
+    private int[] markedNodeNrs;
+    private int markedNodeCount;
+    // ranges whose terms have to be recalculated
+    private boolean[] isMarkedSRange;
+    private int[] markedSRangeNrs;
+    private int markedSRangeCount;
+
+    // undo journal: the terms replaced since the last store(). Entry i >= 0 is node i, entry -k-1 is range k.
+    private int[] journalEntries;
+    private double[] journalValues;
+    private int journalSize;
+    private int[] journalStamps;
+    private int storeStamp = 1;
+    // if true the terms were recalculated from scratch since the last store() and the stored* arrays hold the
+    // terms to restore
+    private boolean termsSwapped;
+    private double[] storedNodeTerms, storedRangeTerms;
+    private double[] storedRangeFirstHeights, storedRangeLastHeights, storedRangeAncestralLastHeights;
+    private double storedTermsSum;
+    private int storedUpdatesSinceSum;
+    private boolean storedTermsValid;
+    private double storedTermsLambda, storedTermsMu, storedTermsPsi, storedTermsRho, storedTermsR, storedTermsC1, storedTermsC2;
+    private int storedTermsSRangesInitCount;
+
+    // compiled snapshots of the tree, the stored one is kept to be restored if the snapshot was recompiled
+    // since the last store()
+    private CompiledTree compiledTree = new CompiledTree();
+    private CompiledTree storedCompiledTree = new CompiledTree();
+    private boolean compiledTreeSwapped = false;
+
+    // log(psi), log(lambda) and lambda + mu + psi, updated together with the parameters
+    private double logPsi, logLambda, rateSum;
+
+    // compiled tree used by calculateTreeLogLikelihoods, separate from the snapshots of the MCMC state
+    private CompiledTree batchCompiledTree = new CompiledTree();
+
+    // counts and times the likelihood evaluations when set by a PerformanceLogger, null otherwise
+    private PerformanceCounter likelihoodCounter = null;
+
+    // pool the fork-join tasks of the parallel mode run in
+    private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
+    /**
+     * Flat representation of an SRTree: the heights of the nodes grouped by the terms they contribute
+     * to the likelihood. It only depends on the tree (and on whether rho is zero).
+     */
+    private static class CompiledTree {
+        boolean isValid = false;
+        boolean isRhoZero;
+        int sRangesInitCount;
+
+        // sampled tips whose parent is in a different range and in the same range
+        double[] tipHeights = new double[0];
+        int tipCount;
+        double[] sameRangeTipHeights = new double[0];
+        int sameRangeTipCount;
+        // tips sampled at present (rho sampling)
+        int extantTipCount;
+        // fake nodes, and fake nodes that are in the same range as only their parent or only their non-direct ancestor
+        // child
+        int fakeNodeCount;
+        double[] parentSameRangeFakeHeights = new double[0];
+        int parentSameRangeFakeCount;
+        double[] childSameRangeFakeHeights = new double[0];
+        int childSameRangeFakeCount;
+        // branching nodes
+        double[] bifurcationHeights = new double[0];
+        int bifurcationCount;
+        // sum of the durations of all ranges and the heights of the first occurrences of ranges with an ancestral
+        // range together with the heights of the ends of the ancestral ranges
+        double rangeDurationSum;
+        double[] rangeFirstHeights = new double[0];
+        double[] ancestralRangeLastHeights = new double[0];
+        int ancestralRangeCount;
+
+        void compile(SRTree tree, boolean isRhoZero) {
+            int nodeCount = tree.getNodeCount();
+            int rangeCount = tree.getSRanges().size();
+            if (tipHeights.length < nodeCount) {
+                tipHeights = new double[nodeCount];
+                sameRangeTipHeights = new double[nodeCount];
+                parentSameRangeFakeHeights = new double[nodeCount];
+                childSameRangeFakeHeights = new double[nodeCount];
+                bifurcationHeights = new double[nodeCount];
+            }
+            if (rangeFirstHeights.length < rangeCount) {
+                rangeFirstHeights = new double[rangeCount];
+                ancestralRangeLastHeights = new double[rangeCount];
+            }
+            tipCount = 0;
+            sameRangeTipCount = 0;
+            extantTipCount = 0;
+            fakeNodeCount = 0;
+            parentSameRangeFakeCount = 0;
+            childSameRangeFakeCount = 0;
+            bifurcationCount = 0;
+
+            for (int i = 0; i < nodeCount; i++) {
+                Node node = tree.getNode(i);
+                double height = node.getHeight();
+                if (node.isLeaf()) {
+                    if (!node.isDirectAncestor()) {
+                        if (height > 0.000000000005 || isRhoZero) {
+                            if (tree.belongToSameSRange(i, node.getParent().getNr())) {
+                                sameRangeTipHeights[sameRangeTipCount++] = height;
+                            } else {
+                                tipHeights[tipCount++] = height;
+                            }
+                        } else {
+                            extantTipCount++;
+                        }
+                    }
+                } else if (node.isFake()) {
+                    fakeNodeCount++;
+                    Node parent = node.getParent();
+                    Node child = node.getNonDirectAncestorChild();
+                    boolean parentSameRange = parent != null && tree.belongToSameSRange(parent.getNr(), i);
+                    boolean childSameRange = child != null && tree.belongToSameSRange(i, child.getNr());
+                    // the terms of a fake node inside a range cancel out
+                    if (parentSameRange && !childSameRange) {
+                        parentSameRangeFakeHeights[parentSameRangeFakeCount++] = height;
+                    } else if (childSameRange && !parentSameRange) {
+                        childSameRangeFakeHeights[childSameRangeFakeCount++] = height;
+                    }
+                } else {
+                    bifurcationHeights[bifurcationCount++] = height;
+                }
+            }
+
+            rangeDurationSum = 0.0;
+            ancestralRangeCount = 0;
+            for (int k = 0; k < rangeCount; k++) {
+                StratigraphicRange range = tree.getSRanges().get(k);
+                Node first = tree.getNode(range.getFirstNodeNr());
+                if (!range.isSingleFossilRange()) {
+                    rangeDurationSum += first.getHeight() -
+                            tree.getNode(range.getLastNodeNr()).getHeight();
+                }
+                double tOld = ancestralRangeLastHeight(tree, k);
+                if (tOld >= 0) {
+                    rangeFirstHeights[ancestralRangeCount] = first.getHeight();
+                    ancestralRangeLastHeights[ancestralRangeCount] = tOld;
+                    ancestralRangeCount++;
+                }
+            }
+
+            this.isRhoZero = isRhoZero;
+            sRangesInitCount = tree.getSRangesInitCount();
+            isValid = true;
+        }
+    }
+
     private double q_tilde(double t, double c1, double c2) {
         return Math.sqrt(Math.exp(t*(lambda + mu + psi))*q(t,c1,c2));
     }
 
-    private double log_q_tilde(double t, double c1, double c2) {
-        return 0.5*(t*(lambda + mu + psi) + log_q(t,c1,c2));
+    /**
+     * Fused kernel of the terms of a height t: log q(t), log q_tilde(t) = (t*(lambda + mu + psi) + log q(t))/2 and
+     * log p0s(t) share the exponential e = exp(-c1*t). log q(t) is calculated in log space from
+     * q(t) = exp(c1*t)*((1 + c2)^2 + 2*(1 - c2^2)*e + (1 - c2)^2*e^2), so exp(c1*t) is never calculated.
+     */
+    protected static double logQ(double t, double e, double c1, double c2) {
+        return c1*t + Math.log((1 + c2)*(1 + c2) + e*(2*(1 - c2*c2) + e*(1 - c2)*(1 - c2)));
     }
 
-    private double log_lambda_times_int_limits_p(double tOld, double tYoung, double c1, double c2) {
-        return Math.log((lambda+mu+psi-c1)*(tOld - tYoung) + 2*Math.log(Math.exp(-c1*tYoung)*(1-c2)+(1+c2)) -
-                2*Math.log(Math.exp(-c1*tOld)*(1-c2)+(1+c2))) - Math.log(2);
+    protected static double logP0s(double e, double lambda, double rateSum, double c1, double c2, double r) {
+        double p0 = (rateSum + c1*((e*(1 - c2) - (1 + c2))/(e*(1 - c2) + (1 + c2))))/(2*lambda);
+        return Math.log(r + (1 - r)*p0);
     }
 
-    private Node findAncestralRangeLastNode(Node node) {
-        Node parent = node.getParent();
-        if (parent == null) {
-            return parent;
-        } else {
-            if (parent.isFake()) {
-                return parent;
-            } else if (parent.getChild(0) == node) {
-                return findAncestralRangeLastNode(parent);
-            } else {
-                return null;
-            }
+    /**
+     * @return log of lambda times the integral of p over [tYoung, tOld]
+     */
+    protected static double logLambdaTimesIntLimitsP(double tOld, double tYoung, double rateSum, double c1, double c2) {
+        // with e = exp(-c1*tYoung), exp(-c1*tOld) = e*(1 + x), so the difference of the logs of
+        // e*(1 - c2) + (1 + c2) at both heights is a single log1p that stays accurate for short ranges
+        double e = Math.exp(-c1*tYoung);
+        double x = Math.expm1(-c1*(tOld - tYoung));
+        double f = e*(1 - c2) + (1 + c2);
+        return Math.log((rateSum - c1)*(tOld - tYoung) - 2*Math.log1p(e*(1 - c2)*x/f)) - LOG_2;
+    }
+
+    protected void updateHeightTermConstants() {
+        logPsi = Math.log(psi);
+        logLambda = Math.log(lambda);
+        rateSum = lambda + mu + psi;
+    }
+
+    /**
+     * @return the term of a tip at height t that is not sampled at present, sameRange is true if the tip belongs to
+     * the same range as its parent
+     */
+    protected double tipTerm(double t, boolean sameRange) {
+        double e = Math.exp(-c1*t);
+        double logQ = logQ(t, e, c1, c2);
+        return logPsi + (sameRange ? 0.5*(t*rateSum + logQ) : logQ) + logP0s(e, lambda, rateSum, c1, c2, r);
+    }
+
+    /**
+     * @return log q_tilde(t) - log q(t)
+     */
+    protected double logQTildeMinusLogQ(double t) {
+        return 0.5*(t*rateSum - logQ(t, Math.exp(-c1*t), c1, c2));
+    }
+
+    /**
+     * @return the term of a fake node at height t, parentSameRange and childSameRange are true if the parent and the
+     * child belong to the same range as the fake node, the terms of log q_tilde(t) - log q(t) cancel out if both do
+     */
+    protected double fakeNodeTerm(double t, boolean parentSameRange, boolean childSameRange) {
+        if (parentSameRange == childSameRange) {
+            return logPsi;
         }
+        double term = logQTildeMinusLogQ(t);
+        return logPsi + (parentSameRange ? term : -term);
+    }
+
+    protected double bifurcationTerm(double t) {
+        return logLambda - logQ(t, Math.exp(-c1*t), c1, c2);
+    }
+
+    /**
+     * @return the height of the fake node that ends the range the range buds off from, or -1 if there is none
+     */
+    private static double ancestralRangeLastHeight(SRTree tree, int rangeNr) {
+        int nodeNr = tree.getAncestralSRangeLastNodeNr(rangeNr);
+        return nodeNr < 0 ? -1.0 : tree.getNode(nodeNr).getHeight();
     }
 
 
 
+    public void setLikelihoodCounter(PerformanceCounter counter) {
+        likelihoodCounter = counter;
+    }
+
+    /**
+     * sets the pool the parallel mode runs in, the common pool by default
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        forkJoinPool = pool;
+    }
+
+    /**
+     * @return true if the compiled snapshot holds the tree of the last evaluation in the compileTree mode
+     */
+    protected boolean isTreeCompiled() {
+        return compiledTree.isValid;
+    }
+
     @Override
     public double calculateTreeLogLikelihood(TreeInterface tree)
     {
-        int nodeCount = tree.getNodeCount();
+        long startTime = PerformanceCounter.start(likelihoodCounter);
+        double logPost = calculateLogLikelihood(tree);
+        PerformanceCounter.stop(likelihoodCounter, startTime, logPost);
+        return logPost;
+    }
+
+    private double calculateLogLikelihood(TreeInterface tree) {
         updateParameters();
+        updateHeightTermConstants();
+        // the cached terms of the incremental mode are outdated if the calculation stops before updating them
+        boolean cachedTermsValid = termsValid;
+        termsValid = false;
+        double logPost = calculateOriginAndConditioningTerms(tree);
+        if (logPost == Double.NEGATIVE_INFINITY) {
+            if (compileTreeInput.get() && tree.somethingIsDirty()) {
+                invalidateCompiledTree();
+            }
+            return logPost;
+        }
+
+        termsValid = cachedTermsValid;
+
+        if (compileTreeInput.get()) {
+            SRTree srTree = (SRTree) tree;
+            boolean treeChanged = srTree.somethingIsDirty() || !compiledTree.isValid ||
+                    compiledTree.isRhoZero != (rho == 0.) || compiledTree.sRangesInitCount != srTree.getSRangesInitCount();
+            if (!treeChanged) {
+                return logPost + calculateCompiledTerms(compiledTree);
+            }
+            invalidateCompiledTree();
+            // the incremental mode is cheaper than compiling after a tree change, so it compiles on the first
+            // evaluation that only follows parameter changes
+            if (!incrementalInput.get() || !srTree.somethingIsDirty()) {
+                compiledTree.compile(srTree, rho == 0.);
+                return logPost + calculateCompiledTerms(compiledTree);
+            }
+        }
+
+        if (!incrementalInput.get()) {
+            if (parallelInput.get() && tree.getNodeCount() >= parallelThresholdInput.get()) {
+                return logPost + calculateTermsInParallel((SRTree) tree, forkJoinPool);
+            }
+            return addNodeAndRangeTerms(tree, logPost);
+        }
+
+        double incrementalLogPost = logPost + calculateTermsIncrementally((SRTree) tree);
+        if (checkIncrementalInput.get()) {
+            double fullLogPost = addNodeAndRangeTerms(tree, logPost);
+            if (Math.abs(fullLogPost - incrementalLogPost) > INCREMENTAL_TOLERANCE * Math.max(1.0, Math.abs(fullLogPost))) {
+                throw new RuntimeException("Incremental calculation of the tree log likelihood gives " +
+                        incrementalLogPost + " but the full calculation gives " + fullLogPost);
+            }
+        }
+        return incrementalLogPost;
+    }
+
+    /**
+     * marks the compiled snapshot as outdated, the current one is kept to be restored
+     */
+    private void invalidateCompiledTree() {
+        if (!compiledTreeSwapped) {
+            CompiledTree tmp = compiledTree;
+            compiledTree = storedCompiledTree;
+            storedCompiledTree = tmp;
+            compiledTreeSwapped = true;
+        }
+        compiledTree.isValid = false;
+    }
+
+    /**
+     * @return the terms of the origin (or the root) and of the conditioning calculated from the current parameters,
+     * or Double.NEGATIVE_INFINITY if the parameters or the root height are not valid
+     */
+    private double calculateOriginAndConditioningTerms(TreeInterface tree) {
         if (lambdaExceedsMu && lambda <= mu) {
             return Double.NEGATIVE_INFINITY;
         }
@@ -123,55 +461,660 @@ public class SRangesBirthDeathModel extends SABirthDeathModel {
             }
         }
 
+        return logPost;
+    }
+
+    /**
+     * adds the contributions of all nodes and all ranges to logPost
+     */
+    private double addNodeAndRangeTerms(TreeInterface tree, double logPost) {
+        int nodeCount = tree.getNodeCount();
         for (int i = 0; i < nodeCount; i++) {
             Node node = tree.getNode(i);
             if (node.isLeaf()) {
                 if  (!node.isDirectAncestor())  {
                     if (node.getHeight() > 0.000000000005 || rho == 0.) {
                         Node fossilParent = node.getParent();
-                        if (((SRTree)tree).belongToSameSRange(i, fossilParent.getNr())) {
-                            logPost += Math.log(psi) + log_q_tilde(node.getHeight(), c1, c2) + log_p0s(node.getHeight(), c1, c2);
-                        } else {
-                            logPost += Math.log(psi) + log_q(node.getHeight(), c1, c2) + log_p0s(node.getHeight(), c1, c2);
-                        }
+                        logPost += tipTerm(node.getHeight(), ((SRTree)tree).belongToSameSRange(i, fossilParent.getNr()));
                     } else {
                         logPost += Math.log(4*rho);
                     }
                 }
             } else {
                 if (node.isFake()) {
-                    logPost += Math.log(psi);
                     Node parent = node.getParent();
                     Node child = node.getNonDirectAncestorChild();
-                    if (parent != null && ((SRTree)tree).belongToSameSRange(parent.getNr(),i)) {
-                        logPost += log_q_tilde(node.getHeight(), c1, c2) - log_q(node.getHeight(), c1, c2);
-                    }
-                    if (child != null && ((SRTree)tree).belongToSameSRange(i,child.getNr())) {
-                        logPost += log_q(node.getHeight(), c1, c2)-  log_q_tilde(node.getHeight(), c1, c2);
-                    }
+                    logPost += fakeNodeTerm(node.getHeight(),
+                            parent != null && ((SRTree)tree).belongToSameSRange(parent.getNr(),i),
+                            child != null && ((SRTree)tree).belongToSameSRange(i,child.getNr()));
                 } else {
-                    logPost += Math.log(lambda) - log_q(node.getHeight(), c1, c2);
+                    logPost += bifurcationTerm(node.getHeight());
                 }
             }
         }
 
-        for (StratigraphicRange range:((SRTree)tree).getSRanges()) {
-            Node first =  tree.getNode(range.getNodeNrs().get(0));
+        List<StratigraphicRange> ranges = ((SRTree)tree).getSRanges();
+        for (int k = 0; k < ranges.size(); k++) {
+            StratigraphicRange range = ranges.get(k);
+            Node first =  tree.getNode(range.getFirstNodeNr());
             if (!range.isSingleFossilRange()) {
                 double tFirst =first.getHeight();
-                double tLast = tree.getNode(range.getNodeNrs().get(range.getNodeNrs().size()-1)).getHeight();
+                double tLast = tree.getNode(range.getLastNodeNr()).getHeight();
                 logPost += psi*(tFirst - tLast);
             }
-            Node ancestralLast = findAncestralRangeLastNode(first);
-            if (ancestralLast != null) {
-                double tOld = ancestralLast.getHeight();
+            double tOld = ancestralRangeLastHeight((SRTree)tree, k);
+            if (tOld >= 0) {
                 double tYoung = first.getHeight();
-                logPost += log_lambda_times_int_limits_p(tOld, tYoung, c1, c2);
+                logPost += logLambdaTimesIntLimitsP(tOld, tYoung, rateSum, c1, c2);
             }
         }
 
         return logPost;
     }
 
+    /**
+     * @return the sum of the contributions of all nodes and ranges calculated by fork-join tasks. The nodes and
+     * ranges are split into chunks of a fixed size that are summed and combined in a fixed order with Neumaier
+     * summation, so that the result does not depend on the number of threads.
+     */
+    private double calculateTermsInParallel(SRTree tree, ForkJoinPool pool) {
+        int itemCount = tree.getNodeCount() + tree.getSRanges().size();
+        int chunkCount = (itemCount + PARALLEL_CHUNK_SIZE - 1)/PARALLEL_CHUNK_SIZE;
+        // the tasks only read the ancestral range index
+        tree.ensureAncestralSRanges();
+        double[] sum = pool.invoke(new TermSumTask(tree, 0, chunkCount));
+        // the compensation is not defined if an infinite term was added
+        return Double.isInfinite(sum[0]) ? sum[0] : sum[0] + sum[1];
+    }
+
+    /**
+     * Sums the contributions of the nodes and ranges in the chunks from firstChunk to lastChunk (not included),
+     * items 0 to nodeCount - 1 are the nodes and the following items are the ranges. The result is the pair of the
+     * sum and its compensation.
+     */
+    private class TermSumTask extends RecursiveTask<double[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        final SRTree tree;
+        final int firstChunk, lastChunk;
+
+        TermSumTask(SRTree tree, int firstChunk, int lastChunk) {
+            this.tree = tree;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+        }
+
+        @Override
+        protected double[] compute() {
+            double[] sum = new double[2];
+            if (lastChunk - firstChunk > 1) {
+                int middleChunk = (firstChunk + lastChunk) >>> 1;
+                TermSumTask right = new TermSumTask(tree, middleChunk, lastChunk);
+                right.fork();
+                double[] leftSum = new TermSumTask(tree, firstChunk, middleChunk).compute();
+                double[] rightSum = right.join();
+                addCompensated(sum, leftSum[0]);
+                addCompensated(sum, leftSum[1]);
+                addCompensated(sum, rightSum[0]);
+                addCompensated(sum, rightSum[1]);
+                return sum;
+            }
+
+            int nodeCount = tree.getNodeCount();
+            List<StratigraphicRange> ranges = tree.getSRanges();
+            int end = Math.min((firstChunk + 1)*PARALLEL_CHUNK_SIZE, nodeCount + ranges.size());
+            for (int k = firstChunk*PARALLEL_CHUNK_SIZE; k < end; k++) {
+                if (k < nodeCount) {
+                    addCompensated(sum, nodeTerm(tree, tree.getNode(k)));
+                } else {
+                    StratigraphicRange range = ranges.get(k - nodeCount);
+                    Node first = tree.getNode(range.getFirstNodeNr());
+                    double tFirst = first.getHeight();
+                    double tLast = range.isSingleFossilRange() ? tFirst :
+                            tree.getNode(range.getLastNodeNr()).getHeight();
+                    addCompensated(sum, rangeTerm(tFirst, tLast, ancestralRangeLastHeight(tree, k - nodeCount)));
+                }
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Neumaier summation: adds term to the sum sum[0] and the lost low order bits to the compensation sum[1]
+     */
+    private static void addCompensated(double[] sum, double term) {
+        double t = sum[0] + term;
+        if (Math.abs(sum[0]) >= Math.abs(term)) {
+            sum[1] += (sum[0] - t) + term;
+        } else {
+            sum[1] += (term - t) + sum[0];
+        }
+        sum[0] = t;
+    }
+
+    /**
+     * @return the sum of the contributions of all nodes and ranges calculated from the compiled tree
+     */
+    private double calculateCompiledTerms(CompiledTree compiled) {
+        double sum = 0.0;
+
+        for (int k = 0; k < compiled.tipCount; k++) {
+            sum += tipTerm(compiled.tipHeights[k], false);
+        }
+        for (int k = 0; k < compiled.sameRangeTipCount; k++) {
+            sum += tipTerm(compiled.sameRangeTipHeights[k], true);
+        }
+        if (compiled.extantTipCount > 0) {
+            sum += compiled.extantTipCount * Math.log(4*rho);
+        }
+
+        sum += compiled.fakeNodeCount * logPsi;
+        for (int k = 0; k < compiled.parentSameRangeFakeCount; k++) {
+            sum += logQTildeMinusLogQ(compiled.parentSameRangeFakeHeights[k]);
+        }
+        for (int k = 0; k < compiled.childSameRangeFakeCount; k++) {
+            sum -= logQTildeMinusLogQ(compiled.childSameRangeFakeHeights[k]);
+        }
+
+        for (int k = 0; k < compiled.bifurcationCount; k++) {
+            sum += bifurcationTerm(compiled.bifurcationHeights[k]);
+        }
+
+        sum += psi*compiled.rangeDurationSum;
+        for (int k = 0; k < compiled.ancestralRangeCount; k++) {
+            sum += logLambdaTimesIntLimitsP(compiled.ancestralRangeLastHeights[k], compiled.rangeFirstHeights[k], rateSum, c1, c2);
+        }
+        return sum;
+    }
+
+    /**
+     * Calculates the tree log likelihood for a batch of parameter settings given as a structure of arrays: setting k
+     * has birth rate lambdas[k], death rate mus[k], sampling rate psis[k] and sampling probability at present rhos[k].
+     * The origin, the removal probability and the conditioning are taken from the inputs. The tree is traversed once
+     * and the terms of every height are calculated for all settings in the batch, which is much faster than setting
+     * the parameters and calling calculateTreeLogLikelihood(tree) for every setting.
+     *
+     * @return the log likelihoods of the settings
+     */
+    public double[] calculateTreeLogLikelihoods(SRTree tree, double[] lambdas, double[] mus, double[] psis, double[] rhos) {
+        int batchSize = lambdas.length;
+        if (mus.length != batchSize || psis.length != batchSize || rhos.length != batchSize) {
+            throw new RuntimeException("The parameter arrays of a batch should have the same length");
+        }
+        double[] logPosts = new double[batchSize];
+
+        // the extant tips are sampled tips if rho is zero, so the tree is compiled separately for these settings
+        int[] batchNrs = new int[batchSize];
+        int rhoZeroCount = 0;
+        for (int k = 0; k < batchSize; k++) {
+            if (rhos[k] == 0.) {
+                batchNrs[rhoZeroCount++] = k;
+            }
+        }
+        int rhoNonZeroCount = 0;
+        for (int k = 0; k < batchSize; k++) {
+            if (rhos[k] != 0.) {
+                batchNrs[rhoZeroCount + rhoNonZeroCount++] = k;
+            }
+        }
+
+        updateParameters();
+        try {
+            if (rhoZeroCount > 0) {
+                batchCompiledTree.compile(tree, true);
+                calculateBatch(tree, batchCompiledTree, Arrays.copyOfRange(batchNrs, 0, rhoZeroCount),
+                        lambdas, mus, psis, rhos, logPosts);
+            }
+            if (rhoNonZeroCount > 0) {
+                batchCompiledTree.compile(tree, false);
+                calculateBatch(tree, batchCompiledTree, Arrays.copyOfRange(batchNrs, rhoZeroCount, batchSize),
+                        lambdas, mus, psis, rhos, logPosts);
+            }
+        } finally {
+            // the parameter fields are overwritten by the settings of the batch
+            updateParameters();
+        }
+        return logPosts;
+    }
+
+    /**
+     * Calculates logPosts[batchNrs[b]] for all b from the compiled tree, the same terms as calculateCompiledTerms
+     * with the outer loops going over the heights and the inner loops over the settings of the batch.
+     */
+    private void calculateBatch(SRTree tree, CompiledTree compiled, int[] batchNrs,
+                                double[] lambdas, double[] mus, double[] psis, double[] rhos, double[] logPosts) {
+        int size = batchNrs.length;
+        double[] batchLambda = new double[size], batchLogPsi = new double[size], batchLogLambda = new double[size];
+        double[] batchRateSum = new double[size], batchC1 = new double[size], batchC2 = new double[size];
+        double[] sum = new double[size];
+        boolean[] isValid = new boolean[size];
+
+        for (int b = 0; b < size; b++) {
+            int k = batchNrs[b];
+            // the same parameters as set by updateParameters()
+            lambda = lambdas[k];
+            mu = mus[k];
+            psi = psis[k];
+            rho = rhos[k];
+            c1 = Math.sqrt((lambda - mu - psi)*(lambda - mu - psi) + 4*lambda*psi);
+            c2 = -(lambda - mu - 2*lambda*rho - psi)/c1;
+
+            sum[b] = calculateOriginAndConditioningTerms(tree);
+            // the terms of the heights of invalid settings are calculated with the rates set to zero and ignored
+            isValid[b] = sum[b] != Double.NEGATIVE_INFINITY;
+            if (!isValid[b]) {
+                continue;
+            }
+            batchLambda[b] = lambda;
+            batchLogPsi[b] = Math.log(psi);
+            batchLogLambda[b] = Math.log(lambda);
+            batchRateSum[b] = lambda + mu + psi;
+            batchC1[b] = c1;
+            batchC2[b] = c2;
+            if (compiled.extantTipCount > 0) {
+                sum[b] += compiled.extantTipCount*Math.log(4*rho);
+            }
+            sum[b] += compiled.fakeNodeCount*batchLogPsi[b] + psi*compiled.rangeDurationSum;
+        }
+
+        for (int i = 0; i < compiled.tipCount; i++) {
+            double height = compiled.tipHeights[i];
+            for (int b = 0; b < size; b++) {
+                double e = Math.exp(-batchC1[b]*height);
+                sum[b] += batchLogPsi[b] + logQ(height, e, batchC1[b], batchC2[b]) +
+                        logP0s(e, batchLambda[b], batchRateSum[b], batchC1[b], batchC2[b], r);
+            }
+        }
+        for (int i = 0; i < compiled.sameRangeTipCount; i++) {
+            double height = compiled.sameRangeTipHeights[i];
+            for (int b = 0; b < size; b++) {
+                double e = Math.exp(-batchC1[b]*height);
+                sum[b] += batchLogPsi[b] + 0.5*(height*batchRateSum[b] + logQ(height, e, batchC1[b], batchC2[b])) +
+                        logP0s(e, batchLambda[b], batchRateSum[b], batchC1[b], batchC2[b], r);
+            }
+        }
+        for (int i = 0; i < compiled.parentSameRangeFakeCount; i++) {
+            double height = compiled.parentSameRangeFakeHeights[i];
+            for (int b = 0; b < size; b++) {
+                sum[b] += 0.5*(height*batchRateSum[b] - logQ(height, Math.exp(-batchC1[b]*height), batchC1[b], batchC2[b]));
+            }
+        }
+        for (int i = 0; i < compiled.childSameRangeFakeCount; i++) {
+            double height = compiled.childSameRangeFakeHeights[i];
+            for (int b = 0; b < size; b++) {
+                sum[b] -= 0.5*(height*batchRateSum[b] - logQ(height, Math.exp(-batchC1[b]*height), batchC1[b], batchC2[b]));
+            }
+        }
+        for (int i = 0; i < compiled.bifurcationCount; i++) {
+            double height = compiled.bifurcationHeights[i];
+            for (int b = 0; b < size; b++) {
+                sum[b] += batchLogLambda[b] - logQ(height, Math.exp(-batchC1[b]*height), batchC1[b], batchC2[b]);
+            }
+        }
+        for (int i = 0; i < compiled.ancestralRangeCount; i++) {
+            double tOld = compiled.ancestralRangeLastHeights[i];
+            double tYoung = compiled.rangeFirstHeights[i];
+            for (int b = 0; b < size; b++) {
+                sum[b] += logLambdaTimesIntLimitsP(tOld, tYoung, batchRateSum[b], batchC1[b], batchC2[b]);
+            }
+        }
+
+        for (int b = 0; b < size; b++) {
+            logPosts[batchNrs[b]] = isValid[b] ? sum[b] : Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @return the contribution of a single node, the same as the node adds in addNodeAndRangeTerms
+     */
+    private double nodeTerm(SRTree tree, Node node) {
+        int i = node.getNr();
+        double height = node.getHeight();
+        if (node.isLeaf()) {
+            if (node.isDirectAncestor()) {
+                return 0.0;
+            }
+            if (height > 0.000000000005 || rho == 0.) {
+                return tipTerm(height, tree.belongToSameSRange(i, node.getParent().getNr()));
+            } else {
+                return Math.log(4*rho);
+            }
+        } else if (node.isFake()) {
+            Node parent = node.getParent();
+            Node child = node.getNonDirectAncestorChild();
+            return fakeNodeTerm(height, parent != null && tree.belongToSameSRange(parent.getNr(),i),
+                    child != null && tree.belongToSameSRange(i,child.getNr()));
+        } else {
+            return bifurcationTerm(height);
+        }
+    }
+
+    /**
+     * @return the contribution of a range with the first occurrence at tFirst, the last occurrence at tLast
+     * and the ancestral range ending at tOld (tOld is negative if there is no ancestral range)
+     */
+    private double rangeTerm(double tFirst, double tLast, double tOld) {
+        double term = psi*(tFirst - tLast);
+        if (tOld >= 0) {
+            term += logLambdaTimesIntLimitsP(tOld, tFirst, rateSum, c1, c2);
+        }
+        return term;
+    }
+
+    /**
+     * Calculates the sum of node and range terms recalculating only the terms of the nodes that are dirty or
+     * changed range membership (and their neighbours) and of the ranges whose heights changed. The dirty nodes are
+     * taken from the dirty node journal of the tree and only the ranges that can depend on the recalculated nodes are
+     * checked, so the cost does not grow with the size of the tree unless all nodes are dirty.
+     */
+    private double calculateTermsIncrementally(SRTree tree) {
+        int nodeCount = tree.getNodeCount();
+        int rangeCount = tree.getSRanges().size();
+
+        if (!termsValid || nodeTerms.length != nodeCount || rangeTerms.length != rangeCount ||
+                termsSRangesInitCount != tree.getSRangesInitCount() || parametersChanged()) {
+            recalculateAllTerms(tree);
+            return termsSum;
+        }
+
+        markedNodeCount = 0;
+        if (tree.isDirtyNodeJournalValid()) {
+            // the journal also holds the nodes whose children were swapped, which does not set their isDirty flag
+            for (int k = 0; k < tree.getDirtyNodeCount(); k++) {
+                markNodeAndNeighbours(tree.getNode(tree.getDirtyNodeNr(k)));
+            }
+        } else {
+            for (int i = 0; i < nodeCount; i++) {
+                Node node = tree.getNode(i);
+                if (node.isDirty() != Tree.IS_CLEAN) {
+                    markNodeAndNeighbours(node);
+                }
+            }
+        }
+        for (int k = 0; k < tree.getSRangeChangedNodeCount(); k++) {
+            markNodeAndNeighbours(tree.getNode(tree.getSRangeChangedNodeNr(k)));
+        }
+        markedSRangeCount = 0;
+        for (int k = 0; k < markedNodeCount; k++) {
+            int i = markedNodeNrs[k];
+            isMarkedNode[i] = false;
+            markSRangesAt(tree, tree.getNode(i));
+            double term = nodeTerm(tree, tree.getNode(i));
+            if (term != nodeTerms[i]) {
+                journal(i, nodeTerms[i]);
+                termsSum += term - nodeTerms[i];
+                nodeTerms[i] = term;
+                updatesSinceSum++;
+            }
+        }
+
+        List<StratigraphicRange> ranges = tree.getSRanges();
+        for (int m = 0; m < markedSRangeCount; m++) {
+            int k = markedSRangeNrs[m];
+            isMarkedSRange[k] = false;
+            StratigraphicRange range = ranges.get(k);
+            Node first = tree.getNode(range.getFirstNodeNr());
+            double tFirst = first.getHeight();
+            double tLast = range.isSingleFossilRange() ? tFirst :
+                    tree.getNode(range.getLastNodeNr()).getHeight();
+            double tOld = ancestralRangeLastHeight(tree, k);
+            if (tFirst != rangeFirstHeights[k] || tLast != rangeLastHeights[k] || tOld != rangeAncestralLastHeights[k]) {
+                journal(-k-1, rangeTerms[k]);
+                double term = rangeTerm(tFirst, tLast, tOld);
+                termsSum += term - rangeTerms[k];
+                rangeTerms[k] = term;
+                rangeFirstHeights[k] = tFirst;
+                rangeLastHeights[k] = tLast;
+                rangeAncestralLastHeights[k] = tOld;
+                updatesSinceSum++;
+            }
+        }
+
+        // sum up from scratch from time to time so that rounding errors of the running total do not accumulate
+        if (updatesSinceSum > nodeCount + rangeCount) {
+            sumTerms();
+        }
+        return termsSum;
+    }
+
+    private void markNodeAndNeighbours(Node node) {
+        markNode(node);
+        if (node.getParent() != null) {
+            markNode(node.getParent());
+        }
+        for (int k = 0; k < node.getChildCount(); k++) {
+            markNode(node.getChild(k));
+        }
+    }
+
+    private void markNode(Node node) {
+        int i = node.getNr();
+        if (!isMarkedNode[i]) {
+            isMarkedNode[i] = true;
+            markedNodeNrs[markedNodeCount++] = i;
+        }
+    }
+
+    /**
+     * Marks the ranges whose term can depend on the marked node: the range of the node, whose first or last
+     * occurrence it can be, and the ranges whose ancestral range can end at the node or whose climb to their
+     * ancestral range passes through it. These start at a child of the node or further down the left children of
+     * its children, where a fake node ends the climbs from below it.
+     */
+    private void markSRangesAt(SRTree tree, Node node) {
+        markSRange(tree.getSRangeNr(node.getNr()));
+        for (Node child : node.getChildren()) {
+            while (child != null) {
+                if (tree.getSRangePosition(child.getNr()) == 0) {
+                    markSRange(tree.getSRangeNr(child.getNr()));
+                }
+                if (child.isLeaf() || child.isFake()) {
+                    break;
+                }
+                child = child.getLeft();
+            }
+        }
+    }
+
+    private void markSRange(int k) {
+        if (k >= 0 && !isMarkedSRange[k]) {
+            isMarkedSRange[k] = true;
+            markedSRangeNrs[markedSRangeCount++] = k;
+        }
+    }
+
+    private boolean parametersChanged() {
+        return lambda != termsLambda || mu != termsMu || psi != termsPsi || rho != termsRho || r != termsR ||
+                c1 != termsC1 || c2 != termsC2;
+    }
+
+    private void recalculateAllTerms(SRTree tree) {
+        int nodeCount = tree.getNodeCount();
+        int rangeCount = tree.getSRanges().size();
+
+        if (termsValid && nodeTerms.length == nodeCount && rangeTerms.length == rangeCount && !termsSwapped) {
+            // keep the current terms to be able to restore them
+            undoJournal();
+            swapTerms();
+            termsSwapped = true;
+        } else if (!termsSwapped) {
+            // the terms can not be restored
+            storedTermsValid = false;
+        }
+        if (nodeTerms == null || nodeTerms.length != nodeCount || rangeTerms.length != rangeCount) {
+            nodeTerms = new double[nodeCount];
+            rangeTerms = new double[rangeCount];
+            rangeFirstHeights = new double[rangeCount];
+            rangeLastHeights = new double[rangeCount];
+            rangeAncestralLastHeights = new double[rangeCount];
+            isMarkedNode = new boolean[nodeCount];
+            markedNodeNrs = new int[nodeCount];
+            isMarkedSRange = new boolean[rangeCount];
+            markedSRangeNrs = new int[rangeCount];
+            journalEntries = new int[nodeCount + rangeCount];
+            journalValues = new double[4*(nodeCount + rangeCount)];
+            journalStamps = new int[nodeCount + rangeCount];
+            journalSize = 0;
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            nodeTerms[i] = nodeTerm(tree, tree.getNode(i));
+        }
+        List<StratigraphicRange> ranges = tree.getSRanges();
+        for (int k = 0; k < rangeCount; k++) {
+            StratigraphicRange range = ranges.get(k);
+            Node first = tree.getNode(range.getFirstNodeNr());
+            double tFirst = first.getHeight();
+            double tLast = range.isSingleFossilRange() ? tFirst :
+                    tree.getNode(range.getLastNodeNr()).getHeight();
+            double tOld = ancestralRangeLastHeight(tree, k);
+            rangeTerms[k] = rangeTerm(tFirst, tLast, tOld);
+            rangeFirstHeights[k] = tFirst;
+            rangeLastHeights[k] = tLast;
+            rangeAncestralLastHeights[k] = tOld;
+        }
+        sumTerms();
+
+        termsLambda = lambda;
+        termsMu = mu;
+        termsPsi = psi;
+        termsRho = rho;
+        termsR = r;
+        termsC1 = c1;
+        termsC2 = c2;
+        termsSRangesInitCount = tree.getSRangesInitCount();
+        termsValid = true;
+    }
+
+    private void sumTerms() {
+        termsSum = 0.0;
+        for (double term:nodeTerms) {
+            termsSum += term;
+        }
+        for (double term:rangeTerms) {
+            termsSum += term;
+        }
+        updatesSinceSum = 0;
+    }
+
+    /**
+     * records the old value of a node term (entry >= 0) or of a range term (entry = -rangeNr-1) so that it
+     * can be restored, every term is recorded at most once between two calls of store()
+     */
+    private void journal(int entry, double oldTerm) {
+        if (termsSwapped) {
+            return;
+        }
+        int slot = entry >= 0 ? entry : nodeTerms.length - entry - 1;
+        if (journalStamps[slot] == storeStamp) {
+            return;
+        }
+        journalStamps[slot] = storeStamp;
+        journalEntries[journalSize] = entry;
+        journalValues[4*journalSize] = oldTerm;
+        if (entry < 0) {
+            int k = -entry-1;
+            journalValues[4*journalSize+1] = rangeFirstHeights[k];
+            journalValues[4*journalSize+2] = rangeLastHeights[k];
+            journalValues[4*journalSize+3] = rangeAncestralLastHeights[k];
+        }
+        journalSize++;
+    }
+
+    private void undoJournal() {
+        for (int j = journalSize-1; j >= 0; j--) {
+            int entry = journalEntries[j];
+            if (entry >= 0) {
+                nodeTerms[entry] = journalValues[4*j];
+            } else {
+                int k = -entry-1;
+                rangeTerms[k] = journalValues[4*j];
+                rangeFirstHeights[k] = journalValues[4*j+1];
+                rangeLastHeights[k] = journalValues[4*j+2];
+                rangeAncestralLastHeights[k] = journalValues[4*j+3];
+            }
+        }
+        journalSize = 0;
+    }
+
+    private void swapTerms() {
+        double[] tmp = nodeTerms;
+        nodeTerms = storedNodeTerms;
+        storedNodeTerms = tmp;
+        tmp = rangeTerms;
+        rangeTerms = storedRangeTerms;
+        storedRangeTerms = tmp;
+        tmp = rangeFirstHeights;
+        rangeFirstHeights = storedRangeFirstHeights;
+        storedRangeFirstHeights = tmp;
+        tmp = rangeLastHeights;
+        rangeLastHeights = storedRangeLastHeights;
+        storedRangeLastHeights = tmp;
+        tmp = rangeAncestralLastHeights;
+        rangeAncestralLastHeights = storedRangeAncestralLastHeights;
+        storedRangeAncestralLastHeights = tmp;
+        if (nodeTerms == null) {
+            nodeTerms = new double[storedNodeTerms.length];
+            rangeTerms = new double[storedRangeTerms.length];
+            rangeFirstHeights = new double[storedRangeTerms.length];
+            rangeLastHeights = new double[storedRangeTerms.length];
+            rangeAncestralLastHeights = new double[storedRangeTerms.length];
+        }
+    }
+
+    @Override
+    public void store() {
+        super.store();
+        compiledTreeSwapped = false;
+        if (incrementalInput.get()) {
+            journalSize = 0;
+            storeStamp++;
+            termsSwapped = false;
+            storedTermsSum = termsSum;
+            storedUpdatesSinceSum = updatesSinceSum;
+            storedTermsValid = termsValid;
+            storedTermsLambda = termsLambda;
+            storedTermsMu = termsMu;
+            storedTermsPsi = termsPsi;
+            storedTermsRho = termsRho;
+            storedTermsR = termsR;
+            storedTermsC1 = termsC1;
+            storedTermsC2 = termsC2;
+            storedTermsSRangesInitCount = termsSRangesInitCount;
+        }
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        if (compiledTreeSwapped) {
+            CompiledTree tmp = compiledTree;
+            compiledTree = storedCompiledTree;
+            storedCompiledTree = tmp;
+            compiledTreeSwapped = false;
+        }
+        if (incrementalInput.get()) {
+            if (termsSwapped) {
+                swapTerms();
+                termsSwapped = false;
+            } else {
+                undoJournal();
+            }
+            storeStamp++;
+            termsSum = storedTermsSum;
+            updatesSinceSum = storedUpdatesSinceSum;
+            termsValid = storedTermsValid;
+            termsLambda = storedTermsLambda;
+            termsMu = storedTermsMu;
+            termsPsi = storedTermsPsi;
+            termsRho = storedTermsRho;
+            termsR = storedTermsR;
+            termsC1 = storedTermsC1;
+            termsC2 = storedTermsC2;
+            termsSRangesInitCount = storedTermsSRangesInitCount;
+        }
+    }
+
 }
 
@@ -0,0 +1,118 @@
+package sranges;
+
+/**
+ * Number of calls, failures, accepts and rejections, inner loop iterations and total time in nanoseconds of one
+ * instrumented method. A failure is a call returning Double.NEGATIVE_INFINITY, accepts and rejections are the decisions
+ * of the MCMC on the proposals that did not fail.
+ * The instrumented classes keep a null counter unless a PerformanceLogger attaches one, the static methods do
+ * nothing for a null counter so that the instrumentation costs a single null check when it is not used.
+ */
+public class PerformanceCounter {
+
+    final String label;
+    final boolean countsFailures;
+    final boolean countsDecisions;
+    final boolean countsIterations;
+
+    long callCount;
+    long failureCount;
+    long acceptCount;
+    long rejectionCount;
+    long iterationCount;
+    long nanoTime;
+
+    /**
+     * @param label the prefix of the logged columns
+     * @param countsFailures if true, the calls returning Double.NEGATIVE_INFINITY are logged as failures
+     * @param countsDecisions if true, the accepts and rejections of the proposals are logged
+     * @param countsIterations if true, the iterations of the inner loops of the method are logged
+     */
+    public PerformanceCounter(String label, boolean countsFailures, boolean countsDecisions, boolean countsIterations) {
+        this.label = label;
+        this.countsFailures = countsFailures;
+        this.countsDecisions = countsDecisions;
+        this.countsIterations = countsIterations;
+    }
+
+    /**
+     * @return the start time of a call, or 0 if the counter is null
+     */
+    public static long start(PerformanceCounter counter) {
+        return counter == null ? 0L : System.nanoTime();
+    }
+
+    /**
+     * counts a call started at startTime
+     */
+    public static void stop(PerformanceCounter counter, long startTime) {
+        if (counter != null) {
+            counter.nanoTime += System.nanoTime() - startTime;
+            counter.callCount++;
+        }
+    }
+
+    /**
+     * counts a call started at startTime that returned value, the call failed if value is Double.NEGATIVE_INFINITY
+     */
+    public static void stop(PerformanceCounter counter, long startTime, double value) {
+        if (counter != null) {
+            stop(counter, startTime);
+            if (value == Double.NEGATIVE_INFINITY) {
+                counter.failureCount++;
+            }
+        }
+    }
+
+    /**
+     * counts a proposal accepted by the MCMC
+     */
+    public static void accept(PerformanceCounter counter) {
+        if (counter != null) {
+            counter.acceptCount++;
+        }
+    }
+
+    /**
+     * counts a proposal that did not fail but was rejected by the MCMC
+     */
+    public static void reject(PerformanceCounter counter) {
+        if (counter != null) {
+            counter.rejectionCount++;
+        }
+    }
+
+    public static void addIterations(PerformanceCounter counter, int iterationCount) {
+        if (counter != null) {
+            counter.iterationCount += iterationCount;
+        }
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getCallCount() {
+        return callCount;
+    }
+
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    public long getAcceptCount() {
+        return acceptCount;
+    }
+
+    public long getRejectionCount() {
+        return rejectionCount;
+    }
+
+    public long getIterationCount() {
+        return iterationCount;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+}
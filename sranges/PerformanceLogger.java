@@ -0,0 +1,121 @@
+package sranges;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.evolution.tree.SRTree;
+import operators.SRTreeOperator;
+import speciation.SRangesBirthDeathModel;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logs the number of calls and the mean time per call of the operators, the store() and restore() of the trees and
+ * the likelihood calculations given as inputs. For the operators it also logs the failed proposals, which returned
+ * Double.NEGATIVE_INFINITY, and the accepts and rejections of the others. All values are taken over the samples since
+ * the previous log line.
+ */
+@Description("Logs counters and timers of the operators, trees and birth-death models on stratigraphic ranges " +
+        "to find out which of them slows down a run. The components are only instrumented when used by this logger.")
+public class PerformanceLogger extends BEASTObject implements Loggable {
+
+    public final Input<List<SRTreeOperator>> operatorInput = new Input<>("operator", "operator to log the proposals, " +
+            "failed proposals, accepts, rejections, rejection loop iterations and proposal time of", new ArrayList<>());
+    public final Input<List<SRTree>> treeInput = new Input<>("tree", "tree to log the number and time of store() " +
+            "and restore() calls of", new ArrayList<>());
+    public final Input<List<SRangesBirthDeathModel>> distributionInput = new Input<>("distribution", "birth-death " +
+            "model to log the number and time of likelihood evaluations of", new ArrayList<>());
+
+    private List<PerformanceCounter> counters;
+
+    // the values of the counters at the previous log line
+    private long[] loggedCallCounts, loggedFailureCounts, loggedAcceptCounts, loggedRejectionCounts,
+            loggedIterationCounts, loggedNanoTimes;
+
+    @Override
+    public void initAndValidate() {
+        counters = new ArrayList<>();
+        for (SRTreeOperator operator : operatorInput.get()) {
+            PerformanceCounter counter = new PerformanceCounter(getLabel(operator), true, true, true);
+            operator.setProposalCounter(counter);
+            counters.add(counter);
+        }
+        for (SRTree tree : treeInput.get()) {
+            PerformanceCounter storeCounter = new PerformanceCounter(getLabel(tree) + ".store", false, false, false);
+            PerformanceCounter restoreCounter = new PerformanceCounter(getLabel(tree) + ".restore", false, false, false);
+            tree.setPerformanceCounters(storeCounter, restoreCounter);
+            counters.add(storeCounter);
+            counters.add(restoreCounter);
+        }
+        for (SRangesBirthDeathModel distribution : distributionInput.get()) {
+            PerformanceCounter counter = new PerformanceCounter(getLabel(distribution), true, false, false);
+            distribution.setLikelihoodCounter(counter);
+            counters.add(counter);
+        }
+        loggedCallCounts = new long[counters.size()];
+        loggedFailureCounts = new long[counters.size()];
+        loggedAcceptCounts = new long[counters.size()];
+        loggedRejectionCounts = new long[counters.size()];
+        loggedIterationCounts = new long[counters.size()];
+        loggedNanoTimes = new long[counters.size()];
+    }
+
+    private static String getLabel(BEASTObject object) {
+        return object.getID() != null ? object.getID() : object.getClass().getSimpleName();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (PerformanceCounter counter : counters) {
+            out.print(counter.label + ".calls\t");
+            if (counter.countsFailures) {
+                out.print(counter.label + ".failures\t");
+            }
+            if (counter.countsDecisions) {
+                out.print(counter.label + ".accepts\t");
+                out.print(counter.label + ".rejections\t");
+            }
+            if (counter.countsIterations) {
+                out.print(counter.label + ".iterations\t");
+            }
+            out.print(counter.label + ".nsPerCall\t");
+        }
+    }
+
+    @Override
+    public void log(int sample, PrintStream out) {
+        for (int k=0; k<counters.size(); k++) {
+            PerformanceCounter counter = counters.get(k);
+            long callCount = counter.callCount - loggedCallCounts[k];
+            out.print(callCount + "\t");
+            if (counter.countsFailures) {
+                out.print((counter.failureCount - loggedFailureCounts[k]) + "\t");
+            }
+            if (counter.countsDecisions) {
+                out.print((counter.acceptCount - loggedAcceptCounts[k]) + "\t");
+                out.print((counter.rejectionCount - loggedRejectionCounts[k]) + "\t");
+            }
+            if (counter.countsIterations) {
+                out.print((counter.iterationCount - loggedIterationCounts[k]) + "\t");
+            }
+            long nanoTime = counter.nanoTime - loggedNanoTimes[k];
+            out.print((callCount == 0 ? 0.0 : (double) nanoTime / callCount) + "\t");
+
+            loggedCallCounts[k] = counter.callCount;
+            loggedFailureCounts[k] = counter.failureCount;
+            loggedAcceptCounts[k] = counter.acceptCount;
+            loggedRejectionCounts[k] = counter.rejectionCount;
+            loggedIterationCounts[k] = counter.iterationCount;
+            loggedNanoTimes[k] = counter.nanoTime;
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+}
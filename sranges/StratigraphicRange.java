@@ -4,10 +4,14 @@ import beast.core.BEASTObject;
 import beast.core.Input;
 import beast.evolution.alignment.Taxon;
 import beast.evolution.tree.Node;
+import beast.evolution.tree.SRTree;
 import beast.evolution.tree.Tree;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 /**
  *@author Alexandra Gavryushkina
@@ -34,8 +38,38 @@ public class StratigraphicRange extends BEASTObject {
      * The intermediate nodes (if any) are always branching nodes.
      * For a single fossil range the first and the last occurrences coincide and there is only a single.
      * node in the list.
+     * The numbers are kept in the first nodeNrCount entries of an int array, NO_NODE marks a position that is
+     * not assigned yet.
      */
-    private List<Integer> nodes = new ArrayList<>();  //
+    private int[] nodeNrs = new int[4];
+    private int nodeNrCount = 0;
+
+    public static final int NO_NODE = -1;
+
+    /**
+     * List view of the node numbers for the deprecated getNodeNrs()
+     */
+    private final List<Integer> nodeNrsView = new AbstractList<Integer>() {
+        @Override
+        public Integer get(int i) {
+            if (i >= nodeNrCount) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + nodeNrCount);
+            }
+            return nodeNrs[i] == NO_NODE ? null : nodeNrs[i];
+        }
+
+        @Override
+        public int size() {
+            return nodeNrCount;
+        }
+    };
+
+    /**
+     * The tree that keeps the node to range index for this range and the number of this range in that tree.
+     * The tree is notified every time the list of nodes changes.
+     */
+    private SRTree tree = null;
+    private int rangeNr = -1;
 
     @Override
     public void initAndValidate() {
@@ -49,26 +83,188 @@ public class StratigraphicRange extends BEASTObject {
         }
     }
 
+    /**
+     * @return a range with the same occurrences that has no nodes and is not attached to a tree
+     */
+    public StratigraphicRange copy() {
+        StratigraphicRange range = new StratigraphicRange();
+        range.setID(getID());
+        if (taxonFirstOccurrenceInput.get() != null) {
+            range.setInputValue("firstOccurrence", taxonFirstOccurrenceInput.get());
+        }
+        if (taxonLastOccurrenceInput.get() != null) {
+            range.setInputValue("lastOccurrence", taxonLastOccurrenceInput.get());
+        }
+        range.firstOccurrenceID = firstOccurrenceID;
+        range.lastOccurrenceID = lastOccurrenceID;
+        range.isSingleFossilRange = isSingleFossilRange;
+        return range;
+    }
+
+    /**
+     * Attaches the range to the tree that indexes its nodes.
+     * @param tree the tree the range belongs to
+     * @param rangeNr the number of the range in the tree
+     */
+    public void setTree(SRTree tree, int rangeNr) {
+        this.tree = tree;
+        this.rangeNr = rangeNr;
+    }
+
+    public int getRangeNr() {
+        return rangeNr;
+    }
+
     public boolean containsNodeNr(int nodeNr) {
-        return nodes.contains(nodeNr);
+        if (tree != null && tree.isCurrentSRange(this)) {
+            return tree.getSRangeNr(nodeNr) == rangeNr;
+        }
+        return indexOfNodeNr(nodeNr) >= 0;
+    }
+
+    /**
+     * @return the position of the node in the range or -1 if the node does not belong to the range
+     */
+    public int indexOfNodeNr(int nodeNr) {
+        for (int i=0; i<nodeNrCount; i++) {
+            if (nodeNrs[i] == nodeNr) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public void addNodeNrAfter(int nodeAfterNr, int nodeNr) {
-        int i= nodes.indexOf(nodeAfterNr)+1;
-        nodes.add(i,nodeNr);
+        int i;
+        if (tree != null && tree.isCurrentSRange(this) && tree.getSRangeNr(nodeAfterNr) == rangeNr) {
+            i = tree.getSRangePosition(nodeAfterNr)+1;
+        } else {
+            i = indexOfNodeNr(nodeAfterNr)+1;
+        }
+        insertNodeNr(i, nodeNr);
+        updateTreeIndex(i);
     }
 
     public void removeNodeNr(int nodeNr) {
-
-        nodes.remove((Integer)nodeNr);
+        int i = indexOfNodeNr(nodeNr);
+        if (i < 0) {
+            return;
+        }
+        System.arraycopy(nodeNrs, i+1, nodeNrs, i, nodeNrCount-i-1);
+        nodeNrCount--;
+        if (tree != null) {
+            tree.unindexSRangeNode(this, nodeNr);
+        }
+        updateTreeIndex(i);
     }
 
     public void removeAllNodeNrs() {
-        nodes.clear();
+        if (tree != null) {
+            for (int i=0; i<nodeNrCount; i++) {
+                if (nodeNrs[i] != NO_NODE) {
+                    tree.unindexSRangeNode(this, nodeNrs[i]);
+                }
+            }
+        }
+        nodeNrCount = 0;
+    }
+
+    /**
+     * replaces the nodes of this range by the nodes of another range keeping their order
+     */
+    public void assignNodeNrsFrom(StratigraphicRange other) {
+        assignNodeNrs(other.nodeNrs, other.nodeNrCount);
+    }
+
+    /**
+     * replaces the nodes of this range by the first count node numbers of an array keeping their order
+     */
+    public void assignNodeNrs(int[] otherNodeNrs, int count) {
+        removeAllNodeNrs();
+        if (nodeNrs.length < count) {
+            nodeNrs = new int[Math.max(count, otherNodeNrs.length)];
+        }
+        System.arraycopy(otherNodeNrs, 0, nodeNrs, 0, count);
+        nodeNrCount = count;
+        updateTreeIndex(0);
+    }
+
+    private void insertNodeNr(int i, int nodeNr) {
+        if (nodeNrCount == nodeNrs.length) {
+            nodeNrs = Arrays.copyOf(nodeNrs, 2*nodeNrs.length);
+        }
+        System.arraycopy(nodeNrs, i, nodeNrs, i+1, nodeNrCount-i);
+        nodeNrs[i] = nodeNr;
+        nodeNrCount++;
+    }
+
+    /**
+     * replaces the node at position i and removes the old node from the tree index
+     */
+    private void replaceNodeNr(int i, int nodeNr) {
+        int oldNodeNr = nodeNrs[i];
+        nodeNrs[i] = nodeNr;
+        if (tree != null && oldNodeNr != NO_NODE) {
+            tree.unindexSRangeNode(this, oldNodeNr);
+        }
+    }
+
+    /**
+     * notifies the tree that the nodes starting from position i have changed
+     */
+    private void updateTreeIndex(int i) {
+        if (tree != null) {
+            tree.indexSRangeNodes(this, i);
+        }
     }
 
+    /**
+     * @return the number of nodes in the range
+     */
+    public int getNodeNrCount() {
+        return nodeNrCount;
+    }
+
+    /**
+     * @return the number of the node at position i, or NO_NODE if the position is not assigned yet
+     */
+    public int getNodeNr(int i) {
+        if (i >= nodeNrCount) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + nodeNrCount);
+        }
+        return nodeNrs[i];
+    }
+
+    /**
+     * @return the number of the node that corresponds to the first occurrence
+     */
+    public int getFirstNodeNr() {
+        return getNodeNr(0);
+    }
+
+    /**
+     * @return the number of the node that corresponds to the last occurrence
+     */
+    public int getLastNodeNr() {
+        return getNodeNr(nodeNrCount-1);
+    }
+
+    /**
+     * calls the action for the numbers of all nodes of the range in the order they go in the range
+     */
+    public void forEachNodeNr(IntConsumer action) {
+        for (int i=0; i<nodeNrCount; i++) {
+            action.accept(nodeNrs[i]);
+        }
+    }
+
+    /**
+     * @return the list of node numbers, backed by the range
+     * @deprecated boxes the node numbers, use getNodeNrCount() and getNodeNr(int) or forEachNodeNr(IntConsumer)
+     */
+    @Deprecated
     public List<Integer> getNodeNrs() {
-        return nodes;
+        return nodeNrsView;
     }
 
     /**
@@ -77,11 +273,12 @@ public class StratigraphicRange extends BEASTObject {
      * @param nodeNr
      */
     public void setFirstOccurrenceNodeNr(int nodeNr) {
-        if (nodes.isEmpty()) {
-            nodes.add(nodeNr);
+        if (nodeNrCount == 0) {
+            insertNodeNr(0, nodeNr);
         } else {
-            nodes.set(0,nodeNr);
+            replaceNodeNr(0, nodeNr);
         }
+        updateTreeIndex(0);
     }
 
     /**
@@ -92,18 +289,20 @@ public class StratigraphicRange extends BEASTObject {
      */
     public void setLastOccurrenceNodeNr(int nodeNr) {
         if (isSingleFossilRange()) {
-            if (nodes.isEmpty()) {
-                nodes.add(nodeNr);
+            if (nodeNrCount == 0) {
+                insertNodeNr(0, nodeNr);
             } else {
-                nodes.set(0,nodeNr);
+                replaceNodeNr(0, nodeNr);
             }
+            updateTreeIndex(0);
             return;
         } else {
-            if (nodes.isEmpty()) {
-                nodes.add(null);
+            if (nodeNrCount == 0) {
+                insertNodeNr(0, NO_NODE);
             }
         }
-        nodes.add(nodeNr);
+        insertNodeNr(nodeNrCount, nodeNr);
+        updateTreeIndex(nodeNrCount-1);
     }
 
     public void makeSingleFossilRange() {
@@ -127,10 +326,16 @@ public class StratigraphicRange extends BEASTObject {
         return isSingleFossilRange;
     }
 
+    /**
+     * @return a new list with the nodes that do not represent the first occurrence
+     * @deprecated allocates a new list, use getNodeNr(int) for positions 1 to getNodeNrCount()-1 or
+     * SRTree.isSRangeInternalNode(int)
+     */
+    @Deprecated
     public List<Integer> getInternalNodeNrs() {
         List<Integer> internalNodeNrs = new ArrayList<>();
-        for (int i=1; i< nodes.size(); i++) {
-            internalNodeNrs.add(nodes.get(i));
+        for (int i=1; i< nodeNrCount; i++) {
+            internalNodeNrs.add(nodeNrs[i]);
         }
         return internalNodeNrs;
     }
@@ -168,6 +373,7 @@ public class StratigraphicRange extends BEASTObject {
     }
 
     public void addNodeNr(int nodeNr) {
-        nodes.add(nodeNr);
+        insertNodeNr(nodeNrCount, nodeNr);
+        updateTreeIndex(nodeNrCount-1);
     }
 }
@@ -0,0 +1,88 @@
+package test.beast.evolution.tree;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRTree;
+import beast.evolution.tree.SRTreeBinaryLogger;
+import beast.evolution.tree.SRTreeBinaryTraceReader;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import operators.LeftRightChildSwap;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for writing and reading binary traces of SRTree states.
+ */
+public class SRTreeBinaryLoggerTest extends TestCase {
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Randomizer.setSeed(127);
+        SRTree tree = SRTreeTest.createTree();
+        LeftRightChildSwap swap = new LeftRightChildSwap();
+        swap.setInputValue("tree", tree);
+        swap.initAndValidate();
+
+        File file = File.createTempFile("srtree", ".bin");
+        file.deleteOnExit();
+        SRTreeBinaryLogger logger = new SRTreeBinaryLogger();
+        logger.setInputValue("tree", tree);
+        logger.setInputValue("fileName", file.getPath());
+        logger.setInputValue("keyFrameInterval", 7);
+        logger.initAndValidate();
+
+        // the expected heights and children of all samples
+        List<double[]> heights = new ArrayList<>();
+        List<int[]> leftChildNrs = new ArrayList<>();
+        logger.init(null);
+        for (int sample=0; sample<50; sample++) {
+            Node node = tree.getNode(Randomizer.nextInt(tree.getNodeCount()));
+            if (!node.isLeaf() && !node.isFake() && !node.isRoot()) {
+                double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+                node.setHeight(lower + Randomizer.nextDouble()*(node.getParent().getHeight() - lower));
+            }
+            swap.proposal();
+            double[] sampleHeights = new double[tree.getNodeCount()];
+            int[] sampleLeftChildNrs = new int[tree.getNodeCount()];
+            for (int i=0; i<tree.getNodeCount(); i++) {
+                sampleHeights[i] = tree.getNode(i).getHeight();
+                sampleLeftChildNrs[i] = tree.getNode(i).isLeaf() ? -1 : tree.getNode(i).getLeft().getNr();
+            }
+            heights.add(sampleHeights);
+            leftChildNrs.add(sampleLeftChildNrs);
+            logger.log(sample*1000, null);
+        }
+        logger.close(null);
+
+        try (SRTreeBinaryTraceReader reader = new SRTreeBinaryTraceReader(file.toPath())) {
+            assertEquals(50, reader.getSampleCount());
+            assertEquals(tree.getNodeCount(), reader.getNodeCount());
+            assertEquals("1_first", reader.getRangeID(0));
+            for (int i=0; i<tree.getNodeCount(); i++) {
+                assertEquals(tree.getNode(i).getID(), reader.getNodeID(i));
+            }
+            // jump to the samples in random order
+            for (int k=0; k<100; k++) {
+                int index = Randomizer.nextInt(50);
+                SRTreeBinaryTraceReader.Sample sample = reader.getSample(index);
+                assertEquals(index*1000L, sample.sampleNr);
+                assertTrue(Arrays.equals(heights.get(index), sample.heights));
+                assertTrue(Arrays.equals(leftChildNrs.get(index), sample.leftChildNrs));
+            }
+            // the last sample has the ranges of the tree
+            SRTreeBinaryTraceReader.Sample sample = reader.getSample(49);
+            assertEquals(tree.getRoot().getNr(), sample.getRootNr());
+            for (int r=0; r<tree.getSRanges().size(); r++) {
+                assertEquals(tree.getSRanges().get(r).getNodeNrCount(), sample.rangeNodeNrs[r].length);
+                for (int j=0; j<sample.rangeNodeNrs[r].length; j++) {
+                    assertEquals(tree.getSRanges().get(r).getNodeNr(j), sample.rangeNodeNrs[r][j]);
+                }
+            }
+        }
+    }
+
+}
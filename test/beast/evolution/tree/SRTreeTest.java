@@ -0,0 +1,629 @@
+package test.beast.evolution.tree;
+
+import beast.core.Operator;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.RandomSRangeTree;
+import beast.evolution.tree.SRNode;
+import beast.evolution.tree.SRTree;
+import beast.evolution.tree.TraitSet;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.ConstantPopulation;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import operators.LeftRightChildSwap;
+import operators.SRUniform;
+import operators.SRWilsonBalding;
+import org.junit.Test;
+import sranges.StratigraphicRange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the node to range index of SRTree.
+ */
+public class SRTreeTest extends TestCase {
+
+    public static final String NEWICK = "(((((A:3.4,2_last:0.0):1.0,2_first:0.0):0.7,(B:3.5,(3_last:1.7,3_first:0.0):0.8):1.6):0.55,1_last:0.0):0.85,1_first:0.0):0.5";
+
+    public static SRTree createTree() {
+        return createTree(createSRanges());
+    }
+
+    public static ArrayList<StratigraphicRange> createSRanges() {
+        ArrayList<StratigraphicRange> sranges = new ArrayList<>();
+        for (String name: new String[] {"1", "2", "3"}) {
+            StratigraphicRange sr = new StratigraphicRange();
+            sr.setInputValue("firstOccurrence", new Taxon(name + "_first"));
+            sr.setInputValue("lastOccurrence", new Taxon(name + "_last"));
+            sranges.add(sr);
+        }
+        return sranges;
+    }
+
+    public static SRTree createTree(List<StratigraphicRange> sranges) {
+        return createTree(NEWICK, sranges);
+    }
+
+    public static SRTree createTree(String newick, List<StratigraphicRange> sranges) {
+        Tree tree_initial = new TreeParser(newick, false);
+
+        SRTree tree = new SRTree();
+        tree.setInputValue("stratigraphicRange", sranges);
+        tree.setInputValue("nodetype", SRNode.class.getName());
+        tree.assignFrom(tree_initial);
+        return tree;
+    }
+
+    /**
+     * checks the node to range index against the lists of nodes of the ranges
+     */
+    static void checkRangeIndex(SRTree tree) {
+        for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+            int rangeNr = -1;
+            int position = -1;
+            for (int i=0; i<tree.getSRanges().size(); i++) {
+                int index = tree.getSRanges().get(i).indexOfNodeNr(nodeNr);
+                if (index >= 0) {
+                    rangeNr = i;
+                    position = index;
+                }
+            }
+            assertEquals("range of node " + nodeNr, rangeNr, tree.getSRangeNr(nodeNr));
+            assertEquals("position of node " + nodeNr, position, tree.getSRangePosition(nodeNr));
+        }
+    }
+
+    @Test
+    public void testRangeIndex() throws Exception {
+        SRTree tree = createTree();
+        checkRangeIndex(tree);
+
+        StratigraphicRange range = tree.getSRanges().get(0);
+        int firstNr = range.getFirstNodeNr();
+        int lastNr = range.getLastNodeNr();
+        assertTrue(tree.belongToSameSRange(firstNr, lastNr));
+        assertSame(range, tree.getRangeOfNode(tree.getNode(lastNr)));
+
+        // insert a node of another range in the middle of the range and remove it again
+        int otherNr = tree.getSRanges().get(1).getFirstNodeNr();
+        tree.getSRanges().get(1).removeNodeNr(otherNr);
+        range.addNodeNrAfter(firstNr, otherNr);
+        checkRangeIndex(tree);
+        assertEquals(1, tree.getSRangePosition(otherNr));
+        assertEquals(2, tree.getSRangePosition(lastNr));
+        assertTrue(tree.belongToSameSRange(otherNr, lastNr));
+
+        range.removeNodeNr(otherNr);
+        checkRangeIndex(tree);
+        assertEquals(1, tree.getSRangePosition(lastNr));
+        assertFalse(tree.belongToSameSRange(otherNr, lastNr));
+    }
+
+    /**
+     * checks the movable node set against a scan over all nodes
+     */
+    static void checkMovableNodes(SRTree tree) {
+        int count = 0;
+        for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            if (!node.isRoot() && !node.isDirectAncestor() && tree.getSRangePosition(nodeNr) <= 0) {
+                count++;
+            }
+        }
+        assertEquals(count, tree.getMovableNodeCount());
+        for (int k=0; k<tree.getMovableNodeCount(); k++) {
+            assertTrue(tree.isMovableNode(tree.getNode(tree.getMovableNodeNr(k))));
+        }
+    }
+
+    @Test
+    public void testMovableNodes() throws Exception {
+        SRTree tree = createTree();
+        checkMovableNodes(tree);
+
+        // a node inserted in the middle of a range stops being movable and becomes movable again when removed
+        StratigraphicRange range = tree.getSRanges().get(0);
+        int otherNr = tree.getSRanges().get(1).getFirstNodeNr();
+        tree.getSRanges().get(1).removeNodeNr(otherNr);
+        range.addNodeNrAfter(range.getFirstNodeNr(), otherNr);
+        assertFalse(tree.isMovableNode(tree.getNode(otherNr)));
+        checkMovableNodes(tree);
+        range.removeNodeNr(otherNr);
+        assertTrue(tree.isMovableNode(tree.getNode(otherNr)));
+        checkMovableNodes(tree);
+    }
+
+    /**
+     * checks the attachment indexes against a scan over all nodes for the heights of all nodes
+     */
+    static void checkAttachmentIndex(SRTree tree) {
+        for (int heightNr=0; heightNr<tree.getNodeCount(); heightNr++) {
+            double height = tree.getNode(heightNr).getHeight();
+            int edgeCount = 0, leafCount = 0;
+            for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+                Node node = tree.getNode(nodeNr);
+                if (!node.isDirectAncestor() && (node.isRoot() || node.getParent().getHeight() > height)) {
+                    edgeCount++;
+                }
+                if (node.isLeaf() && !node.isDirectAncestor() && node.getHeight() > height) {
+                    leafCount++;
+                }
+            }
+            assertEquals(edgeCount, tree.getAttachmentEdgeCountAbove(height));
+            assertEquals(leafCount, tree.getAttachmentLeafCountAbove(height));
+            for (int k=0; k<edgeCount; k++) {
+                Node node = tree.getNode(tree.getAttachmentEdgeNrAbove(height, k));
+                assertTrue(node.isRoot() || node.getParent().getHeight() > height);
+            }
+            for (int k=0; k<leafCount; k++) {
+                assertTrue(tree.getNode(tree.getAttachmentLeafNrAbove(height, k)).getHeight() > height);
+            }
+        }
+    }
+
+    @Test
+    public void testAttachmentIndex() throws Exception {
+        SRTree tree = createTree();
+        checkAttachmentIndex(tree);
+
+        // moving the parent of A turns the sampled ancestor 2_last into a tip and changes the branches above it
+        Node a = null;
+        for (Node node : tree.getExternalNodes()) {
+            if (node.getID().equals("A")) {
+                a = node;
+            }
+        }
+        a.getParent().setHeight(3.45);
+        checkAttachmentIndex(tree);
+    }
+
+    @Test
+    public void testExternalNodeIndex() throws Exception {
+        SRTree tree = createTree();
+        int k = 0;
+        for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+            if (tree.getNode(nodeNr).isLeaf()) {
+                assertEquals(nodeNr, tree.getExternalNodeNr(k));
+                assertEquals(k, tree.getLeafSlot(nodeNr));
+                k++;
+            } else {
+                assertEquals(-1, tree.getLeafSlot(nodeNr));
+            }
+        }
+        assertEquals(k, tree.getExternalNodeCount());
+        assertEquals(tree.getLeafNodeCount(), tree.getExternalNodeCount());
+    }
+
+    @Test
+    public void testSharedSRanges() throws Exception {
+        // two trees initialised from the same range objects, like a tree and its initialiser
+        ArrayList<StratigraphicRange> sranges = createSRanges();
+        SRTree tree = createTree(sranges);
+        SRTree other = createTree(sranges);
+        assertNotSame(tree.getSRanges().get(0), other.getSRanges().get(0));
+
+        // a node moved to another range in the first tree is only indexed by the first tree
+        StratigraphicRange range = tree.getSRanges().get(0);
+        int otherNr = tree.getSRanges().get(1).getFirstNodeNr();
+        tree.getSRanges().get(1).removeNodeNr(otherNr);
+        range.addNodeNrAfter(range.getFirstNodeNr(), otherNr);
+        assertEquals(0, tree.getSRangeNr(otherNr));
+        assertEquals(1, other.getSRangeNr(otherNr));
+        checkRangeIndex(tree);
+        checkRangeIndex(other);
+    }
+
+    @Test
+    public void testAssignFromFragile() throws Exception {
+        SRTree tree = createTree();
+        SRTree other = createTree();
+
+        // move the first node of range 2 into range 1 of the other tree
+        StratigraphicRange range = other.getSRanges().get(0);
+        int otherNr = other.getSRanges().get(1).getFirstNodeNr();
+        other.getSRanges().get(1).removeNodeNr(otherNr);
+        range.addNodeNrAfter(range.getFirstNodeNr(), otherNr);
+
+        tree.assignFromFragile(other);
+        checkRangeIndex(tree);
+        for (int i=0; i<tree.getSRanges().size(); i++) {
+            StratigraphicRange copy = tree.getSRanges().get(i);
+            StratigraphicRange original = other.getSRanges().get(i);
+            assertEquals(original.getNodeNrCount(), copy.getNodeNrCount());
+            for (int k=0; k<copy.getNodeNrCount(); k++) {
+                assertEquals(original.getNodeNr(k), copy.getNodeNr(k));
+            }
+        }
+        checkMovableNodes(tree);
+
+        // ranges that were not built for the nodes of the other tree are not copied, they are derived from the taxa
+        other.getSRanges().get(0).removeAllNodeNrs();
+        tree.assignFromFragile(other);
+        checkRangeIndex(tree);
+        assertEquals(createTree().getSRanges().get(0).getNodeNrCount(), tree.getSRanges().get(0).getNodeNrCount());
+        checkMovableNodes(tree);
+    }
+
+    @Test
+    public void testRandomStartingTree() throws Exception {
+        // the state tree and its initialiser share the range objects and the taxa as in an XML file
+        Randomizer.setSeed(127);
+        ArrayList<StratigraphicRange> sranges = createSRanges();
+        SRTree tree = createTree(sranges);
+        TaxonSet taxa = new TaxonSet();
+        for (Node leaf : tree.getExternalNodes()) {
+            taxa.setInputValue("taxon", new Taxon(leaf.getID()));
+        }
+        taxa.initAndValidate();
+        TraitSet dates = new TraitSet();
+        dates.initByName("traitname", "date-backward", "taxa", taxa, "value",
+                "A=0.0,B=0.0,1_first=3.0,1_last=1.0,2_first=2.5,2_last=2.0,3_first=1.5,3_last=0.5");
+        tree.setInputValue("trait", dates);
+        ConstantPopulation population = new ConstantPopulation();
+        population.initByName("popSize", new RealParameter("1.0"));
+
+        RandomSRangeTree initialiser = new RandomSRangeTree();
+        initialiser.initByName("initial", tree, "taxonset", taxa, "populationModel", population,
+                "stratigraphicRange", sranges, "nodetype", SRNode.class.getName());
+
+        // every range holds the fake node of its first occurrence and the leaf of its last occurrence below it
+        for (StratigraphicRange range : tree.getSRanges()) {
+            Node first = null;
+            Node last = null;
+            for (Node leaf : tree.getExternalNodes()) {
+                if (leaf.getID().equals(range.getFirstOccurrenceID())) {
+                    first = leaf;
+                } else if (leaf.getID().equals(range.getLastOccurrenceID())) {
+                    last = leaf;
+                }
+            }
+            assertEquals(range.getFirstOccurrenceID(), 2, range.getNodeNrCount());
+            assertEquals(first.getParent().getNr(), range.getFirstNodeNr());
+            assertEquals(last.getNr(), range.getLastNodeNr());
+        }
+        checkRangeIndex(tree);
+        checkMovableNodes(tree);
+        checkAncestralSRanges(tree);
+    }
+
+    /**
+     * checks the ancestral range index against climbs from the first nodes of the ranges along left children
+     */
+    static void checkAncestralSRanges(SRTree tree) {
+        for (int k=0; k<tree.getSRanges().size(); k++) {
+            Node node = tree.getNode(tree.getSRanges().get(k).getFirstNodeNr());
+            int expectedNr = -1;
+            while (node.getParent() != null) {
+                Node parent = node.getParent();
+                if (parent.isFake()) {
+                    expectedNr = parent.getNr();
+                    break;
+                } else if (parent.getLeft() != node) {
+                    break;
+                }
+                node = parent;
+            }
+            assertEquals("ancestral range of range " + k, expectedNr, tree.getAncestralSRangeLastNodeNr(k));
+        }
+    }
+
+    @Test
+    public void testAncestralSRangeIndex() throws Exception {
+        SRTree tree = createTree();
+        checkAncestralSRanges(tree);
+
+        // range 3 buds off from range 1 after swapping the children of the bifurcations above it
+        assertEquals(-1, tree.getAncestralSRangeLastNodeNr(2));
+        Node node = tree.getNode(tree.getSRanges().get(2).getFirstNodeNr());
+        while (!node.getParent().isFake()) {
+            Node parent = node.getParent();
+            if (parent.getLeft() != node) {
+                parent.setRight(parent.getLeft());
+                parent.setLeft(node);
+            }
+            node = parent;
+        }
+        checkAncestralSRanges(tree);
+        assertEquals(node.getParent().getNr(), tree.getAncestralSRangeLastNodeNr(2));
+
+        // moving the sampled ancestor of that fake node off its branch makes the climb go on to the root
+        Node ancestralLast = node.getParent();
+        Node directAncestor = ancestralLast.getDirectAncestorChild();
+        directAncestor.setHeight(directAncestor.getHeight() - 0.1);
+        checkAncestralSRanges(tree);
+        assertEquals(ancestralLast.getParent().getNr(), tree.getAncestralSRangeLastNodeNr(2));
+    }
+
+    private static boolean isStructureChangedNode(SRTree tree, int nodeNr) {
+        for (int k=0; k<tree.getStructureChangedNodeCount(); k++) {
+            if (tree.getStructureChangedNodeNr(k) == nodeNr) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testChangeNotification() throws Exception {
+        SRTree tree = createTree();
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+        state.store(0);
+        assertEquals(0, tree.getStructureChangedNodeCount());
+
+        // a height change only changes the height version
+        long structureVersion = tree.getStructureVersion();
+        long heightVersion = tree.getHeightVersion();
+        Node bifurcation = null;
+        for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            if (!node.isLeaf() && !node.isFake()) {
+                bifurcation = node;
+            }
+        }
+        bifurcation.setHeight(bifurcation.getHeight() + 0.01);
+        assertEquals(structureVersion, tree.getStructureVersion());
+        assertTrue(tree.getHeightVersion() > heightVersion);
+        assertEquals(0, tree.getStructureChangedNodeCount());
+
+        // swapping the children changes the structure version and lists the node and its children
+        Node left = bifurcation.getLeft();
+        Node right = bifurcation.getRight();
+        bifurcation.setLeft(right);
+        bifurcation.setRight(left);
+        assertTrue(tree.getStructureVersion() > structureVersion);
+        assertEquals(3, tree.getStructureChangedNodeCount());
+        assertTrue(isStructureChangedNode(tree, bifurcation.getNr()));
+        assertTrue(isStructureChangedNode(tree, left.getNr()));
+        assertTrue(isStructureChangedNode(tree, right.getNr()));
+
+        // moving a node to another range lists it, restore() undoes all changes and clears the list
+        StratigraphicRange range = tree.getSRanges().get(0);
+        int otherNr = tree.getSRanges().get(1).getFirstNodeNr();
+        tree.getSRanges().get(1).removeNodeNr(otherNr);
+        range.addNodeNrAfter(range.getFirstNodeNr(), otherNr);
+        assertTrue(isStructureChangedNode(tree, otherNr));
+        structureVersion = tree.getStructureVersion();
+        heightVersion = tree.getHeightVersion();
+        tree.restore();
+        assertTrue(tree.getStructureVersion() > structureVersion);
+        assertTrue(tree.getHeightVersion() > heightVersion);
+        assertEquals(0, tree.getStructureChangedNodeCount());
+        checkRangeIndex(tree);
+    }
+
+    /**
+     * checks that two trees have the same nodes and ranges
+     */
+    static void checkSameState(SRTree expected, SRTree tree) {
+        assertEquals(expected.getRoot().getNr(), tree.getRoot().getNr());
+        for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            Node expectedNode = expected.getNode(nodeNr);
+            assertEquals(expectedNode.getHeight(), node.getHeight());
+            assertEquals(expectedNode.isLeaf() ? -1 : expectedNode.getLeft().getNr(), node.isLeaf() ? -1 : node.getLeft().getNr());
+            assertEquals(expectedNode.isLeaf() ? -1 : expectedNode.getRight().getNr(), node.isLeaf() ? -1 : node.getRight().getNr());
+        }
+        for (int i=0; i<tree.getSRanges().size(); i++) {
+            StratigraphicRange range = tree.getSRanges().get(i);
+            StratigraphicRange expectedRange = expected.getSRanges().get(i);
+            assertEquals(expectedRange.getNodeNrCount(), range.getNodeNrCount());
+            for (int k=0; k<range.getNodeNrCount(); k++) {
+                assertEquals(expectedRange.getNodeNr(k), range.getNodeNr(k));
+            }
+        }
+        checkRangeIndex(tree);
+        checkMovableNodes(tree);
+    }
+
+    /**
+     * @return the heights, parents and children of the nodes, the nodes of the ranges, the leaf and movable node
+     * counts and the attachment counts at the heights of all nodes, to compare the states of trees
+     */
+    static String snapshot(SRTree tree) {
+        assertSame(tree.getNode(tree.getRoot().getNr()), tree.getRoot());
+        StringBuilder snapshot = new StringBuilder();
+        snapshot.append("root ").append(tree.getRoot().getNr()).append(" leaves ").append(tree.getLeafNodeCount())
+                .append(" movable ").append(tree.getMovableNodeCount()).append('\n');
+        for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+            Node node = tree.getNode(nodeNr);
+            snapshot.append(nodeNr).append(": ").append(node.getHeight())
+                    .append(" parent ").append(node.isRoot() ? -1 : node.getParent().getNr())
+                    .append(" left ").append(node.isLeaf() ? -1 : node.getLeft().getNr())
+                    .append(" right ").append(node.isLeaf() ? -1 : node.getRight().getNr())
+                    .append(" edges above ").append(tree.getAttachmentEdgeCountAbove(node.getHeight()))
+                    .append(" leaves above ").append(tree.getAttachmentLeafCountAbove(node.getHeight())).append('\n');
+        }
+        for (StratigraphicRange range : tree.getSRanges()) {
+            snapshot.append("range");
+            for (int k=0; k<range.getNodeNrCount(); k++) {
+                snapshot.append(' ').append(range.getNodeNr(k));
+            }
+            snapshot.append('\n');
+        }
+        return snapshot.toString();
+    }
+
+    @Test
+    public void testStoreRestore() throws Exception {
+        Randomizer.setSeed(127);
+        SRTree tree = createTree();
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+        List<Operator> operators = new ArrayList<>();
+        operators.add(new SRWilsonBalding());
+        operators.add(new LeftRightChildSwap());
+        operators.add(new SRUniform());
+        for (Operator operator : operators) {
+            operator.setInputValue("tree", tree);
+            operator.initAndValidate();
+        }
+
+        int sample = 0;
+        for (int step=0; step<1000; step++) {
+            state.store(sample++);
+            String stored = snapshot(tree);
+
+            // one to three proposals, rejected if any of them is
+            boolean accept = Randomizer.nextBoolean();
+            int proposalCount = 1 + Randomizer.nextInt(3);
+            for (int k=0; k<proposalCount; k++) {
+                if (operators.get(Randomizer.nextInt(operators.size())).proposal() == Double.NEGATIVE_INFINITY) {
+                    accept = false;
+                }
+            }
+            if (!accept) {
+                tree.restore();
+                assertEquals(stored, snapshot(tree));
+                // store and restore again without changes in between
+                state.store(sample++);
+                tree.restore();
+                assertEquals(stored, snapshot(tree));
+            }
+            tree.setEverythingDirty(false);
+
+            SRTree rebuilt = createTree();
+            rebuilt.assignFrom(tree);
+            assertEquals(snapshot(rebuilt), snapshot(tree));
+            checkSameState(rebuilt, tree);
+            checkAttachmentIndex(tree);
+            checkAncestralSRanges(tree);
+        }
+    }
+
+    @Test
+    public void testIndexesBuiltDuringRejectedProposal() throws Exception {
+        Randomizer.setSeed(127);
+        for (int k=0; k<200; k++) {
+            // a new tree builds its indexes lazily, here during the proposal
+            SRTree tree = createTree();
+            State state = new State();
+            state.setInputValue("stateNode", tree);
+            state.initAndValidate();
+            Operator operator = Randomizer.nextBoolean() ? new SRWilsonBalding() : new LeftRightChildSwap();
+            operator.setInputValue("tree", tree);
+            operator.initAndValidate();
+
+            state.store(0);
+            String stored = snapshot(createTree());
+            operator.proposal();
+            tree.getMovableNodeCount();
+            tree.getAttachmentEdgeCountAbove(0.0);
+            tree.getAncestralSRangeLastNodeNr(0);
+            tree.restore();
+            tree.setEverythingDirty(false);
+
+            SRTree rebuilt = createTree();
+            rebuilt.assignFrom(tree);
+            assertEquals(stored, snapshot(tree));
+            assertEquals(snapshot(rebuilt), snapshot(tree));
+            checkMovableNodes(tree);
+            checkAttachmentIndex(tree);
+            checkAncestralSRanges(tree);
+        }
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        SRTree tree = createTree();
+
+        // the current state has a node of range 2 in range 1 and another height of the root
+        StratigraphicRange range = tree.getSRanges().get(0);
+        int otherNr = tree.getSRanges().get(1).getFirstNodeNr();
+        tree.getSRanges().get(1).removeNodeNr(otherNr);
+        range.addNodeNrAfter(range.getFirstNodeNr(), otherNr);
+        tree.getRoot().setHeight(tree.getRoot().getHeight() + 0.25);
+
+        File file = File.createTempFile("srtree", ".checkpoint");
+        file.deleteOnExit();
+        tree.writeCheckpoint(file.toPath());
+        SRTree copy = createTree();
+        copy.readCheckpoint(file.toPath());
+        checkSameState(tree, copy);
+
+        // the checkpoint of the copy is the same
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        tree.writeCheckpoint(Channels.newChannel(expected));
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        copy.writeCheckpoint(Channels.newChannel(written));
+        assertTrue(Arrays.equals(expected.toByteArray(), written.toByteArray()));
+
+        // the next store() copies the whole tree, so a rejected proposal returns to the checkpoint
+        State state = new State();
+        state.setInputValue("stateNode", copy);
+        state.initAndValidate();
+        state.store(0);
+        copy.getRoot().setHeight(copy.getRoot().getHeight() + 1.0);
+        copy.restore();
+        checkSameState(tree, copy);
+    }
+
+    /**
+     * @return the checkpoint with the int at offset replaced by value
+     */
+    private static byte[] corrupt(byte[] checkpoint, int offset, int value) {
+        byte[] corrupted = checkpoint.clone();
+        ByteBuffer.wrap(corrupted).putInt(offset, value);
+        return corrupted;
+    }
+
+    @Test
+    public void testCorruptCheckpoint() throws Exception {
+        SRTree tree = createTree();
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        tree.writeCheckpoint(Channels.newChannel(written));
+        byte[] checkpoint = written.toByteArray();
+        int nodeCount = tree.getNodeCount();
+        int rootNr = tree.getRoot().getNr();
+        // the header has five ints, then come the height and the children of every node and then the ranges
+        int rootOffset = 16;
+        int leftOffset = 20 + 16*rootNr + 8;
+        int rightOffset = leftOffset + 4;
+        int rangeNodeOffset = 20 + 16*nodeCount + 4;
+
+        List<byte[]> corrupted = Arrays.asList(
+                corrupt(checkpoint, rootOffset, nodeCount),
+                corrupt(checkpoint, rootOffset, -1),
+                corrupt(checkpoint, leftOffset, nodeCount + 5),
+                corrupt(checkpoint, leftOffset, -7),
+                corrupt(checkpoint, leftOffset, -1),
+                corrupt(checkpoint, leftOffset, rootNr),
+                corrupt(checkpoint, rightOffset, tree.getRoot().getLeft().getNr()),
+                corrupt(checkpoint, rangeNodeOffset, nodeCount),
+                corrupt(checkpoint, rangeNodeOffset, tree.getSRanges().get(1).getFirstNodeNr()),
+                corrupt(checkpoint, rangeNodeOffset - 4, nodeCount + 1),
+                Arrays.copyOf(checkpoint, checkpoint.length - 4));
+
+        // every corrupted checkpoint is rejected before the tree is changed
+        SRTree copy = createTree();
+        copy.getRoot().setHeight(copy.getRoot().getHeight() + 0.25);
+        String before = snapshot(copy);
+        for (byte[] bytes : corrupted) {
+            try {
+                copy.readCheckpoint(Channels.newChannel(new ByteArrayInputStream(bytes)));
+                fail("the corrupted checkpoint should be rejected");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(before, snapshot(copy));
+        }
+        copy.readCheckpoint(Channels.newChannel(new ByteArrayInputStream(checkpoint)));
+        checkSameState(tree, copy);
+    }
+
+}
@@ -0,0 +1,96 @@
+package test.beast.evolution.tree;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRNode;
+import beast.evolution.tree.SimulatedSRangeTree;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+import speciation.SRangesBirthDeathModel;
+import sranges.StratigraphicRange;
+
+/**
+ * Tests for the forward time simulation of stratigraphic range trees.
+ */
+public class SimulatedSRangeTreeTest extends TestCase {
+
+    @Test
+    public void testSimulatedTree() throws Exception {
+        Randomizer.setSeed(127);
+        for (int rep=0; rep<20; rep++) {
+            SimulatedSRangeTree tree = new SimulatedSRangeTree();
+            tree.setInputValue("nodetype", SRNode.class.getName());
+            tree.setInputValue("origin", new RealParameter("4.0"));
+            tree.setInputValue("birthRate", new RealParameter("1.0"));
+            tree.setInputValue("deathRate", new RealParameter("0.5"));
+            tree.setInputValue("samplingRate", new RealParameter("0.4"));
+            tree.setInputValue("removalProbability", new RealParameter("0.0"));
+            tree.setInputValue("rho", new RealParameter("0.5"));
+            tree.initAndValidate();
+
+            for (int nodeNr=0; nodeNr<tree.getNodeCount(); nodeNr++) {
+                Node node = tree.getNode(nodeNr);
+                assertTrue(node.isRoot() || node.getParent().getHeight() >= node.getHeight());
+            }
+            // the nodes of a range go from the first occurrence down the left children to the last occurrence
+            for (StratigraphicRange range : tree.getSRanges()) {
+                if (!range.isSingleFossilRange()) {
+                    assertTrue(tree.getNode(range.getFirstNodeNr()).isFake());
+                }
+                for (int i=1; i<range.getNodeNrCount(); i++) {
+                    assertEquals(range.getNodeNr(i), tree.getNode(range.getNodeNr(i-1)).getLeft().getNr());
+                }
+            }
+            SRTreeTest.checkRangeIndex(tree);
+            SRTreeTest.checkMovableNodes(tree);
+
+            SRangesBirthDeathModel model = new SRangesBirthDeathModel();
+            model.setInputValue("tree", tree);
+            model.setInputValue("origin", new RealParameter("4.0"));
+            model.setInputValue("birthRate", new RealParameter("1.0"));
+            model.setInputValue("deathRate", new RealParameter("0.5"));
+            model.setInputValue("samplingRate", new RealParameter("0.4"));
+            model.setInputValue("removalProbability", new RealParameter("0.0"));
+            model.setInputValue("rho", new RealParameter("0.5"));
+            model.initAndValidate();
+            double logP = model.calculateTreeLogLikelihood(tree);
+            assertFalse(Double.isNaN(logP) || Double.isInfinite(logP));
+        }
+    }
+
+    @Test
+    public void testSimulateAgain() throws Exception {
+        Randomizer.setSeed(127);
+        SimulatedSRangeTree tree = new SimulatedSRangeTree();
+        tree.setInputValue("nodetype", SRNode.class.getName());
+        tree.setInputValue("origin", new RealParameter("4.0"));
+        tree.setInputValue("birthRate", new RealParameter("1.0"));
+        tree.setInputValue("deathRate", new RealParameter("0.5"));
+        tree.setInputValue("samplingRate", new RealParameter("0.4"));
+        tree.setInputValue("removalProbability", new RealParameter("0.0"));
+        tree.setInputValue("rho", new RealParameter("0.5"));
+
+        // every initialisation replaces the ranges of the previous simulation
+        for (int rep=0; rep<5; rep++) {
+            tree.initAndValidate();
+            assertEquals(tree.getSRanges().size(), tree.stratigraphicRangeInput.get().size());
+            for (int k=0; k<tree.getSRanges().size(); k++) {
+                assertEquals(tree.stratigraphicRangeInput.get().get(k).getFirstOccurrenceID(),
+                        tree.getSRanges().get(k).getFirstOccurrenceID());
+            }
+            SRTreeTest.checkRangeIndex(tree);
+            SRTreeTest.checkMovableNodes(tree);
+        }
+
+        // ranges given as inputs are still refused
+        tree.stratigraphicRangeInput.get().add(new StratigraphicRange());
+        try {
+            tree.initAndValidate();
+            fail("ranges given as inputs should be refused");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+}
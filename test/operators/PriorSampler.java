@@ -0,0 +1,158 @@
+package test.operators;
+
+import beast.core.Operator;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import junit.framework.Assert;
+import speciation.SRangesBirthDeathModel;
+import sranges.StratigraphicRange;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metropolis-Hastings chain sampling stratigraphic range trees from the birth-death prior, shared by the operator
+ * tests, which compare the samples of a chain with and without the tested operators. The chains need hundreds of
+ * thousands of steps, so the tests only run them if the system property sranges.longTests is true.
+ */
+public class PriorSampler {
+
+    public static final String LONG_TESTS_PROPERTY = "sranges.longTests";
+
+    /**
+     * @return true if the long running prior sampling tests are enabled with -Dsranges.longTests=true
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(LONG_TESTS_PROPERTY);
+    }
+
+    /**
+     * samples of the chain: the frequencies of the topologies, the sorted heights of the roots that are bifurcations
+     * and the sorted sums of the heights of the bifurcations
+     */
+    public static class Samples {
+        public final Map<String, Double> topologies = new HashMap<>();
+        public double[] rootHeights;
+        public double[] heightSums;
+    }
+
+    /**
+     * runs a chain from the tree with the operators drawn with equal weights
+     */
+    public static Samples samplePrior(SRTree tree, List<Operator> operators, int stepCount) {
+        SRangesBirthDeathModel model = new SRangesBirthDeathModel();
+        model.setInputValue("tree", tree);
+        model.setInputValue("origin", new RealParameter("7.0"));
+        model.setInputValue("birthRate", new RealParameter("1.5"));
+        model.setInputValue("deathRate", new RealParameter("0.5"));
+        model.setInputValue("samplingRate", new RealParameter("0.1"));
+        model.setInputValue("removalProbability", new RealParameter("0.0"));
+        model.setInputValue("rho", new RealParameter("0.5"));
+        model.initAndValidate();
+
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+
+        for (Operator operator : operators) {
+            operator.setInputValue("tree", tree);
+            operator.initAndValidate();
+        }
+
+        Samples samples = new Samples();
+        double[] rootHeights = new double[stepCount];
+        int rootHeightCount = 0;
+        samples.heightSums = new double[stepCount];
+        double logP = model.calculateTreeLogLikelihood(tree);
+        for (int step=0; step<stepCount; step++) {
+            state.store(step);
+            double logHastingsRatio = operators.get(Randomizer.nextInt(operators.size())).proposal();
+            double newLogP = logHastingsRatio == Double.NEGATIVE_INFINITY ? Double.NEGATIVE_INFINITY :
+                    model.calculateTreeLogLikelihood(tree);
+            if (newLogP - logP + logHastingsRatio >= Math.log(Randomizer.nextDouble())) {
+                logP = newLogP;
+                Assert.assertTrue(isRangeOrderKept(tree));
+            } else {
+                tree.restore();
+            }
+            tree.setEverythingDirty(false);
+
+            samples.topologies.merge(topology(tree.getRoot()), 1.0/stepCount, Double::sum);
+            if (!tree.getRoot().isFake()) {
+                rootHeights[rootHeightCount++] = tree.getRoot().getHeight();
+            }
+            for (Node node : tree.getInternalNodes()) {
+                if (!node.isFake()) {
+                    samples.heightSums[step] += node.getHeight();
+                }
+            }
+        }
+        samples.rootHeights = Arrays.copyOf(rootHeights, rootHeightCount);
+        Arrays.sort(samples.rootHeights);
+        Arrays.sort(samples.heightSums);
+        return samples;
+    }
+
+    /**
+     * @return true if every node of every range is below the previous node of the range
+     */
+    private static boolean isRangeOrderKept(SRTree tree) {
+        for (StratigraphicRange range : tree.getSRanges()) {
+            for (int j=1; j<range.getNodeNrCount(); j++) {
+                if (tree.getNode(range.getNodeNr(j)).getHeight() > tree.getNode(range.getNodeNr(j-1)).getHeight()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the topology of the subtree below the node ignoring the orientation, sampled ancestors are marked
+     * with a +
+     */
+    private static String topology(Node node) {
+        if (node.isLeaf()) {
+            return node.getID() + (node.isDirectAncestor() ? "+" : "");
+        }
+        String[] children = new String[node.getChildCount()];
+        for (int k=0; k<children.length; k++) {
+            children[k] = topology(node.getChild(k));
+        }
+        Arrays.sort(children);
+        return "(" + String.join(",", children) + ")";
+    }
+
+    /**
+     * checks that the topologies with a frequency above 1% are sampled with the same frequencies
+     */
+    public static void checkTopologies(Samples expected, Samples sampled) {
+        for (Map.Entry<String, Double> entry : expected.topologies.entrySet()) {
+            if (entry.getValue() > 0.01) {
+                Assert.assertEquals(entry.getKey(), entry.getValue(), sampled.topologies.getOrDefault(entry.getKey(), 0.0),
+                        0.1*entry.getValue() + 0.005);
+            }
+        }
+    }
+
+    /**
+     * checks that the quantiles of the root heights and of the sums of the heights are within 5%
+     */
+    public static void checkHeights(Samples expected, Samples sampled) {
+        checkQuantiles(expected.rootHeights, sampled.rootHeights);
+        checkQuantiles(expected.heightSums, sampled.heightSums);
+    }
+
+    private static void checkQuantiles(double[] expected, double[] sampled) {
+        for (double q : new double[] {0.1, 0.25, 0.5, 0.75, 0.9}) {
+            double expectedQuantile = expected[(int) (q*expected.length)];
+            Assert.assertEquals(expectedQuantile, sampled[(int) (q*sampled.length)], 0.05*expectedQuantile);
+        }
+    }
+
+}
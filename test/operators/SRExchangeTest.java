@@ -0,0 +1,142 @@
+package test.operators;
+
+import beast.core.Operator;
+import beast.core.State;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import operators.LeftRightChildSwap;
+import operators.SRExchange;
+import operators.SRUniform;
+import operators.SRWilsonBalding;
+import org.junit.Test;
+import sranges.StratigraphicRange;
+import test.beast.evolution.tree.SRTreeTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the proposals of SRExchange are symmetric: from states reached by SRWilsonBalding, every tree proposed
+ * by an exchange proposes the original tree with the same probability. Also samples from the birth-death prior with
+ * SRWilsonBalding, LeftRightChildSwap and SRUniform alone and together with the narrow and wide exchanges and compares
+ * the distributions of the topologies and of the heights.
+ */
+public class SRExchangeTest extends TestCase {
+
+    /**
+     * @return the tree with the orientation of the children and the ranges
+     */
+    private static String getState(SRTree tree) {
+        StringBuilder state = new StringBuilder(tree.getRoot().toNewick());
+        for (StratigraphicRange range : tree.getSRanges()) {
+            state.append(" [");
+            for (int j=0; j<range.getNodeNrCount(); j++) {
+                state.append(j > 0 ? "," : "").append(range.getNodeNr(j));
+            }
+            state.append(']');
+        }
+        return state.toString();
+    }
+
+    /**
+     * @return the number of times every tree is proposed in proposalCount proposals from the current tree
+     */
+    private static Map<String, Double> countProposals(State state, SRTree tree, Operator operator, int proposalCount) {
+        Map<String, Double> counts = new HashMap<>();
+        state.store(0);
+        for (int k=0; k<proposalCount; k++) {
+            double logHastingsRatio = operator.proposal();
+            if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+                assertEquals(0.0, logHastingsRatio);
+                counts.merge(getState(tree), 1.0, Double::sum);
+            }
+            tree.restore();
+            state.store(0);
+        }
+        return counts;
+    }
+
+    private static void checkSymmetry(State state, SRTree tree, Operator operator) {
+        int proposalCount = 20000;
+        String x = getState(tree);
+        Map<String, Double> fromX = countProposals(state, tree, operator, proposalCount);
+        for (Map.Entry<String, Double> entry : fromX.entrySet()) {
+            // move to the proposed tree and count the proposals of the original tree
+            String y = entry.getKey();
+            state.store(0);
+            while (operator.proposal() == Double.NEGATIVE_INFINITY || !getState(tree).equals(y)) {
+                tree.restore();
+                state.store(0);
+            }
+            double fromY = countProposals(state, tree, operator, proposalCount).getOrDefault(x, 0.0);
+            assertEquals(y, entry.getValue()/proposalCount, fromY/proposalCount, 0.01);
+            // and back to the original tree
+            state.store(0);
+            while (operator.proposal() == Double.NEGATIVE_INFINITY || !getState(tree).equals(x)) {
+                tree.restore();
+                state.store(0);
+            }
+        }
+    }
+
+    @Test
+    public void testSymmetry() throws Exception {
+        Randomizer.setSeed(127);
+        SRTree tree = SRTreeTest.createTree();
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+
+        SRWilsonBalding wilsonBalding = new SRWilsonBalding();
+        SRExchange narrow = new SRExchange();
+        SRExchange wide = new SRExchange();
+        wide.setInputValue("isNarrow", false);
+        for (Operator operator : new Operator[] {wilsonBalding, narrow, wide}) {
+            operator.setInputValue("tree", tree);
+            operator.initAndValidate();
+        }
+
+        for (int k=0; k<10; k++) {
+            checkSymmetry(state, tree, narrow);
+            checkSymmetry(state, tree, wide);
+            // change the ranges and the sampled ancestors
+            state.store(0);
+            while (wilsonBalding.proposal() == Double.NEGATIVE_INFINITY) {
+                tree.restore();
+                state.store(0);
+            }
+            tree.setEverythingDirty(false);
+        }
+    }
+
+    private static List<Operator> createOperators(Operator... operators) {
+        List<Operator> list = new ArrayList<>(Arrays.asList(operators));
+        list.add(new SRWilsonBalding());
+        list.add(new LeftRightChildSwap());
+        list.add(new SRUniform());
+        return list;
+    }
+
+    @Test
+    public void testPriorSampling() throws Exception {
+        // the chains need a million steps for a stable check
+        if (!PriorSampler.isEnabled()) {
+            return;
+        }
+        Randomizer.setSeed(127);
+        PriorSampler.Samples expected = PriorSampler.samplePrior(SRTreeTest.createTree(), createOperators(), 1000000);
+
+        SRExchange wide = new SRExchange();
+        wide.setInputValue("isNarrow", false);
+        PriorSampler.Samples sampled = PriorSampler.samplePrior(SRTreeTest.createTree(),
+                createOperators(new SRExchange(), wide), 1000000);
+
+        PriorSampler.checkTopologies(expected, sampled);
+        PriorSampler.checkHeights(expected, sampled);
+    }
+
+}
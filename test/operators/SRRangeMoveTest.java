@@ -0,0 +1,83 @@
+package test.operators;
+
+import beast.core.Operator;
+import beast.core.State;
+import beast.evolution.tree.SRNode;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import operators.LeftRightChildSwap;
+import operators.SRRangeMove;
+import operators.SRUniform;
+import operators.SRWilsonBalding;
+import org.junit.Test;
+import test.beast.evolution.tree.SRTreeTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples stratigraphic range trees from the birth-death prior with SRWilsonBalding alone and together with
+ * SRRangeMove and compares the distributions of the topologies. Also checks that the operator works when it is
+ * initialised before the tree.
+ */
+public class SRRangeMoveTest extends TestCase {
+
+    private static List<Operator> createOperators(List<Operator> moves) {
+        List<Operator> operators = new ArrayList<>(moves);
+        operators.add(new SRWilsonBalding());
+        operators.add(new LeftRightChildSwap());
+        operators.add(new SRUniform());
+        return operators;
+    }
+
+    @Test
+    public void testPriorSampling() throws Exception {
+        // the chains need a million steps for a stable check
+        if (!PriorSampler.isEnabled()) {
+            return;
+        }
+        Randomizer.setSeed(127);
+        PriorSampler.Samples expected = PriorSampler.samplePrior(SRTreeTest.createTree(),
+                createOperators(new ArrayList<>()), 1000000);
+        // the range moves have a larger weight than the other operators
+        List<Operator> rangeMoves = new ArrayList<>();
+        for (int k=0; k<4; k++) {
+            rangeMoves.add(new SRRangeMove());
+        }
+        PriorSampler.Samples sampled = PriorSampler.samplePrior(SRTreeTest.createTree(), createOperators(rangeMoves),
+                1000000);
+
+        PriorSampler.checkTopologies(expected, sampled);
+    }
+
+    @Test
+    public void testInitialisedBeforeTree() throws Exception {
+        // the operator comes before the tree in the XML file, so the tree has not built its ranges yet
+        SRTree tree = new SRTree();
+        tree.setInputValue("stratigraphicRange", SRTreeTest.createSRanges());
+        tree.setInputValue("nodetype", SRNode.class.getName());
+        SRRangeMove operator = new SRRangeMove();
+        operator.setInputValue("tree", tree);
+        operator.initAndValidate();
+
+        tree.assignFrom(new TreeParser(SRTreeTest.NEWICK, false));
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+
+        Randomizer.setSeed(127);
+        int movedCount = 0;
+        for (int k=0; k<1000; k++) {
+            state.store(k);
+            if (operator.proposal() != Double.NEGATIVE_INFINITY) {
+                movedCount++;
+            }
+            tree.restore();
+            tree.setEverythingDirty(false);
+        }
+        assertTrue(movedCount > 0);
+    }
+
+}
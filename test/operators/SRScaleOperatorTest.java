@@ -0,0 +1,128 @@
+package test.operators;
+
+import beast.core.Operator;
+import beast.core.State;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import operators.LeftRightChildSwap;
+import operators.SRScaleOperator;
+import operators.SRUniform;
+import operators.SRWilsonBalding;
+import org.junit.Test;
+import test.beast.evolution.tree.SRTreeTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Samples stratigraphic range trees from the birth-death prior with SRWilsonBalding alone and together with SRUniform
+ * and SRScaleOperator and compares the distributions of the root height and of the sum of the heights. Also checks
+ * single proposals against the scale drawn by the operator.
+ */
+public class SRScaleOperatorTest extends TestCase {
+
+    private static final String NEWICK = "(((A:3.4,2_last:0.0):1.0,2_first:0.0):0.7,((B:3.5,(3_last:1.7,3_first:0.0):0.8):0.5,(1_last:1.5,1_first:0.0):2.0):1.1):0.0";
+
+    /**
+     * The root at 4.0 is a bifurcation with the fake node of 1_first at 3.0 and a bifurcation at 3.5 as children. The
+     * bifurcation at 3.5 has the fake nodes of 2_first at 2.5 and 3_first at 3.0 as children. The bifurcation at 2.0
+     * is below the fake node of 1_first and above the fake node of 1_last at 1.5. All bifurcations can be scaled by
+     * scales between 6/7 and 1.5, the root alone by scales above 0.875.
+     */
+    private static final String BOUNDED_NEWICK = "((((A:1.0,1_last:0.0):0.5,B:2.0):1.0,1_first:0.0):1.0,((2_last:1.0,2_first:0.0):1.0,(3_last:0.5,3_first:0.0):0.5):0.5):0.0";
+
+    private static List<Operator> createOperators(Operator... operators) {
+        List<Operator> list = new ArrayList<>(Arrays.asList(operators));
+        list.add(new SRWilsonBalding());
+        list.add(new LeftRightChildSwap());
+        return list;
+    }
+
+    private static double[] getHeights(SRTree tree) {
+        double[] heights = new double[tree.getNodeCount()];
+        for (int nodeNr=0; nodeNr<heights.length; nodeNr++) {
+            heights[nodeNr] = tree.getNode(nodeNr).getHeight();
+        }
+        return heights;
+    }
+
+    /**
+     * makes proposals with scales drawn uniformly from [0.5, 2] and checks that the proposals outside the bounds are
+     * rejected without changing the tree and that the others scale the bifurcations with the Hastings ratio of the
+     * scale
+     */
+    private static void checkProposals(boolean rootOnly, double lower, double upper) {
+        SRTree tree = SRTreeTest.createTree(BOUNDED_NEWICK, SRTreeTest.createSRanges());
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+        SRScaleOperator operator = new SRScaleOperator();
+        operator.setInputValue("tree", tree);
+        operator.setInputValue("scaleFactor", 0.5);
+        operator.setInputValue("rootOnly", rootOnly);
+        operator.initAndValidate();
+
+        double[] heights = getHeights(tree);
+        int rootNr = tree.getRoot().getNr();
+        int rejectedCount = 0;
+        Randomizer.setSeed(127);
+        for (int k=0; k<1000; k++) {
+            // the scale is the first number the operator draws
+            long seed = Randomizer.nextLong();
+            Randomizer.setSeed(seed);
+            double scale = 0.5 + Randomizer.nextDouble()*1.5;
+            Randomizer.setSeed(seed);
+            state.store(k);
+            double logHastingsRatio = operator.proposal();
+
+            double[] proposedHeights = getHeights(tree);
+            if (scale <= lower || scale >= upper) {
+                assertEquals(Double.NEGATIVE_INFINITY, logHastingsRatio);
+                assertTrue(Arrays.equals(heights, proposedHeights));
+                rejectedCount++;
+            } else {
+                assertEquals(rootOnly ? -Math.log(scale) : Math.log(scale), logHastingsRatio, 1e-12);
+                for (int nodeNr=0; nodeNr<heights.length; nodeNr++) {
+                    boolean isScaled = rootOnly ? nodeNr == rootNr :
+                            !tree.getNode(nodeNr).isLeaf() && !tree.getNode(nodeNr).isFake();
+                    assertEquals(isScaled ? heights[nodeNr]*scale : heights[nodeNr], proposedHeights[nodeNr], 1e-12);
+                }
+            }
+            tree.restore();
+            assertTrue(Arrays.equals(heights, getHeights(tree)));
+        }
+        assertTrue(rejectedCount > 0 && rejectedCount < 1000);
+    }
+
+    @Test
+    public void testProposal() throws Exception {
+        // the root, the bifurcation at 3.5 above two fake nodes, and the bifurcation at 2.0 below a fake node
+        checkProposals(false, 3.0/3.5, 1.5);
+    }
+
+    @Test
+    public void testRootOnlyProposal() throws Exception {
+        // the root above the fake node at 3.0 and the bifurcation at 3.5, which is not scaled
+        checkProposals(true, 3.5/4.0, Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void testPriorSampling() throws Exception {
+        if (!PriorSampler.isEnabled()) {
+            return;
+        }
+        Randomizer.setSeed(127);
+        PriorSampler.Samples expected = PriorSampler.samplePrior(SRTreeTest.createTree(NEWICK,
+                SRTreeTest.createSRanges()), createOperators(), 200000);
+
+        SRScaleOperator rootScaler = new SRScaleOperator();
+        rootScaler.setInputValue("rootOnly", true);
+        PriorSampler.Samples sampled = PriorSampler.samplePrior(SRTreeTest.createTree(NEWICK,
+                SRTreeTest.createSRanges()), createOperators(new SRUniform(), new SRScaleOperator(), rootScaler), 200000);
+
+        PriorSampler.checkHeights(expected, sampled);
+    }
+
+}
@@ -1,17 +1,29 @@
 package test.speciation;
 
+import beast.core.Operator;
+import beast.core.State;
 import beast.core.parameter.RealParameter;
 import beast.evolution.alignment.Taxon;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.SRNode;
 import beast.evolution.tree.SRTree;
+import beast.evolution.tree.SimulatedSRangeTree;
 import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
 import beast.util.TreeParser;
 import junit.framework.TestCase;
+import operators.LeftRightChildSwap;
+import operators.SRUniform;
+import operators.SRWilsonBalding;
 import org.junit.Test;
 import speciation.SRangesBirthDeathModel;
 import sranges.StratigraphicRange;
+import test.beast.evolution.tree.SRTreeTest;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by gavryusa on 24/07/17.
@@ -62,4 +74,358 @@ public class SRangesBirthDeathModelTest extends TestCase {
         assertEquals(-33.29951335631795, model.calculateTreeLogLikelihood(tree), 1e-14);
 
     }
+
+    private SRangesBirthDeathModel createModel(SRTree tree, RealParameter birthRate) {
+        return createModel(new SRangesBirthDeathModel(), tree, birthRate);
+    }
+
+    private static <T extends SRangesBirthDeathModel> T createModel(T model, SRTree tree, RealParameter birthRate) {
+        model.setInputValue("tree", tree);
+        model.setInputValue("origin", new RealParameter("7.0"));
+        model.setInputValue("birthRate", birthRate);
+        model.setInputValue("deathRate", new RealParameter("0.5"));
+        model.setInputValue("samplingRate", new RealParameter("0.1"));
+        model.setInputValue("removalProbability", new RealParameter("0.0"));
+        model.setInputValue("rho", new RealParameter("0.5"));
+        return model;
+    }
+
+    @Test
+    public void testIncrementalLikelihood() throws Exception {
+
+        SRTree tree = SRTreeTest.createTree();
+        SRangesBirthDeathModel model = createModel(tree, new RealParameter("1.5"));
+        model.setInputValue("incremental", true);
+        model.setInputValue("checkIncremental", true);
+        model.initAndValidate();
+
+        assertEquals(-33.29951335631795, model.calculateTreeLogLikelihood(tree), 1e-12);
+
+        // move the height of the branching node below 1_last and recalculate only the affected terms
+        Node node = tree.getNode(tree.getSRanges().get(0).getLastNodeNr()).getNonDirectAncestorChild();
+        model.store();
+        node.setHeight(4.9);
+        double incremental = model.calculateTreeLogLikelihood(tree);
+
+        model.setInputValue("incremental", false);
+        assertEquals(model.calculateTreeLogLikelihood(tree), incremental, 1e-12);
+
+        model.setInputValue("incremental", true);
+        model.restore();
+        node.setHeight(5.1);
+        assertEquals(-33.29951335631795, model.calculateTreeLogLikelihood(tree), 1e-12);
+    }
+
+    @Test
+    public void testIncrementalLikelihoodChain() throws Exception {
+        Randomizer.setSeed(127);
+        SRTree tree = SRTreeTest.createTree();
+        RealParameter birthRate = new RealParameter("1.5");
+        SRangesBirthDeathModel model = createModel(tree, birthRate);
+        model.setInputValue("incremental", true);
+        model.setInputValue("checkIncremental", true);
+        model.initAndValidate();
+        SRangesBirthDeathModel fullModel = createModel(tree, birthRate);
+        fullModel.initAndValidate();
+
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+        List<Operator> operators = new ArrayList<>();
+        operators.add(new SRWilsonBalding());
+        operators.add(new LeftRightChildSwap());
+        operators.add(new SRUniform());
+        for (Operator operator : operators) {
+            operator.setInputValue("tree", tree);
+            operator.initAndValidate();
+        }
+
+        // accept or reject the proposals at random, checkIncremental compares every result with the full calculation
+        model.calculateTreeLogLikelihood(tree);
+        int acceptedCount = 0, rejectedCount = 0;
+        for (int step=0; step<2000; step++) {
+            state.store(step);
+            model.store();
+            double logHastingsRatio = operators.get(Randomizer.nextInt(operators.size())).proposal();
+            if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+                assertEquals(fullModel.calculateTreeLogLikelihood(tree), model.calculateTreeLogLikelihood(tree), 1e-12);
+            }
+            if (logHastingsRatio != Double.NEGATIVE_INFINITY && Randomizer.nextBoolean()) {
+                acceptedCount++;
+            } else {
+                tree.restore();
+                model.restore();
+                rejectedCount++;
+            }
+            tree.setEverythingDirty(false);
+        }
+        assertTrue(acceptedCount > 0 && rejectedCount > 0);
+        assertEquals(fullModel.calculateTreeLogLikelihood(tree), model.calculateTreeLogLikelihood(tree), 1e-12);
+    }
+
+    /**
+     * compares the terms of a height with the terms as calculated before they shared exp(-c1*t), from log_q and
+     * log_p0s of SABirthDeathModel
+     */
+    private static class TermModel extends SRangesBirthDeathModel {
+
+        void setParameters(double lambda, double mu, double psi, double rho, double r) {
+            setInputValue("origin", new RealParameter("100.0"));
+            setInputValue("birthRate", new RealParameter(Double.toString(lambda)));
+            setInputValue("deathRate", new RealParameter(Double.toString(mu)));
+            setInputValue("samplingRate", new RealParameter(Double.toString(psi)));
+            setInputValue("removalProbability", new RealParameter(Double.toString(r)));
+            setInputValue("rho", new RealParameter(Double.toString(rho)));
+            updateParameters();
+            updateHeightTermConstants();
+        }
+
+        double oldLogQTilde(double t) {
+            return 0.5*(t*(lambda + mu + psi) + log_q(t, c1, c2));
+        }
+
+        double oldTipTerm(double t, boolean sameRange) {
+            return Math.log(psi) + (sameRange ? oldLogQTilde(t) : log_q(t, c1, c2)) + log_p0s(t, c1, c2);
+        }
+
+        double oldLogLambdaTimesIntLimitsP(double tOld, double tYoung) {
+            return Math.log((lambda + mu + psi - c1)*(tOld - tYoung) + 2*Math.log(Math.exp(-c1*tYoung)*(1 - c2) + (1 + c2)) -
+                    2*Math.log(Math.exp(-c1*tOld)*(1 - c2) + (1 + c2))) - Math.log(2);
+        }
+
+        /**
+         * @return the sum of the absolute values of the summands of the argument of the log in
+         * oldLogLambdaTimesIntLimitsP divided by the absolute value of the argument, which scales the rounding error of
+         * the old calculation for short ranges
+         */
+        double oldIntLimitsPCancellation(double tOld, double tYoung) {
+            double a = (lambda + mu + psi - c1)*(tOld - tYoung);
+            double b = 2*Math.log(Math.exp(-c1*tYoung)*(1 - c2) + (1 + c2));
+            double c = 2*Math.log(Math.exp(-c1*tOld)*(1 - c2) + (1 + c2));
+            return (Math.abs(a) + Math.abs(b) + Math.abs(c))/Math.abs(a + b - c);
+        }
+
+        /**
+         * @param t a height
+         * @param tOld a height above t
+         * @param c1t c1 times a large height
+         */
+        void checkTerms(double t, double tOld, double c1t) {
+            double rateSum = lambda + mu + psi;
+            double e = Math.exp(-c1*t);
+            assertClose(log_q(t, c1, c2), logQ(t, e, c1, c2));
+            assertClose(log_p0s(t, c1, c2), logP0s(e, lambda, rateSum, c1, c2, r));
+            assertClose(oldTipTerm(t, false), tipTerm(t, false));
+            assertClose(oldTipTerm(t, true), tipTerm(t, true));
+            assertClose(oldLogQTilde(t) - log_q(t, c1, c2), logQTildeMinusLogQ(t));
+            assertClose(Math.log(lambda) - log_q(t, c1, c2), bifurcationTerm(t));
+            double oldRangeTerm = oldLogLambdaTimesIntLimitsP(tOld, t);
+            assertEquals(oldRangeTerm, logLambdaTimesIntLimitsP(tOld, t, rateSum, c1, c2),
+                    1e-13*Math.max(1.0, Math.abs(oldRangeTerm)) + 1e-15*oldIntLimitsPCancellation(tOld, t));
+
+            // exp(c1*t) overflows in q(t) for c1*t > 709, but log q(t) = c1*t + 2*log(1 + c2) in double precision
+            // once exp(-c1*t) is below the rounding error
+            double largeT = c1t/c1;
+            double largeE = Math.exp(-c1*largeT);
+            assertClose(c1*largeT + 2*Math.log(1 + c2), logQ(largeT, largeE, c1, c2));
+            assertClose(Math.log(lambda) - c1*largeT - 2*Math.log(1 + c2), bifurcationTerm(largeT));
+            if (c1t < 700) {
+                assertClose(log_q(largeT, c1, c2), logQ(largeT, largeE, c1, c2));
+            }
+        }
+    }
+
+    private static void assertClose(double expected, double value) {
+        assertEquals(expected, value, 1e-13*Math.max(1.0, Math.abs(expected)));
+    }
+
+    @Test
+    public void testHeightTerms() throws Exception {
+        Randomizer.setSeed(127);
+        TermModel model = new TermModel();
+        for (int k=0; k<10000; k++) {
+            double lambda = 0.1 + 5*Randomizer.nextDouble();
+            model.setParameters(lambda, 1.5*lambda*Randomizer.nextDouble(), 0.01 + 3*Randomizer.nextDouble(),
+                    Randomizer.nextDouble(), Randomizer.nextDouble());
+            double t = 10*Randomizer.nextDouble();
+            model.checkTerms(t, t + 5*Randomizer.nextDouble(), 40 + 2000*Randomizer.nextDouble());
+        }
+    }
+
+    @Test
+    public void testCompiledTreeLikelihood() throws Exception {
+
+        SRTree tree = SRTreeTest.createTree();
+        RealParameter birthRate = new RealParameter("1.5");
+        SRangesBirthDeathModel model = createModel(tree, birthRate);
+        model.setInputValue("compileTree", true);
+        model.initAndValidate();
+        SRangesBirthDeathModel fullModel = createModel(tree, birthRate);
+        fullModel.initAndValidate();
+
+        assertEquals(-33.29951335631795, model.calculateTreeLogLikelihood(tree), 1e-12);
+
+        // parameter only changes are calculated from the compiled tree
+        for (double value: new double[] {1.0, 2.5, 0.75}) {
+            birthRate.setValue(value);
+            assertEquals(fullModel.calculateTreeLogLikelihood(tree), model.calculateTreeLogLikelihood(tree), 1e-12);
+        }
+    }
+
+    /**
+     * tells whether the last evaluation left a compiled snapshot of the tree
+     */
+    private static class CompiledTreeModel extends SRangesBirthDeathModel {
+        boolean hasCompiledTree() {
+            return isTreeCompiled();
+        }
+    }
+
+    @Test
+    public void testCompiledTreeIncrementalLikelihood() throws Exception {
+        Randomizer.setSeed(127);
+        SRTree tree = SRTreeTest.createTree();
+        RealParameter birthRate = new RealParameter("1.5");
+        CompiledTreeModel model = createModel(new CompiledTreeModel(), tree, birthRate);
+        model.setInputValue("compileTree", true);
+        model.setInputValue("incremental", true);
+        model.setInputValue("checkIncremental", true);
+        model.initAndValidate();
+        SRangesBirthDeathModel fullModel = createModel(tree, birthRate);
+        fullModel.initAndValidate();
+
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+        List<Operator> operators = new ArrayList<>();
+        operators.add(new SRWilsonBalding());
+        operators.add(new SRUniform());
+        for (Operator operator : operators) {
+            operator.setInputValue("tree", tree);
+            operator.initAndValidate();
+        }
+
+        // tree changes are calculated incrementally, the evaluations after parameter changes from the compiled tree
+        model.calculateTreeLogLikelihood(tree);
+        int compiledCount = 0;
+        for (int step=0; step<1000; step++) {
+            state.store(step);
+            model.store();
+            double storedBirthRate = birthRate.getValue();
+            boolean isTreeChange = Randomizer.nextBoolean();
+            if (isTreeChange) {
+                if (operators.get(Randomizer.nextInt(operators.size())).proposal() == Double.NEGATIVE_INFINITY) {
+                    tree.restore();
+                    model.restore();
+                    tree.setEverythingDirty(false);
+                    continue;
+                }
+            } else {
+                birthRate.setValue(0.75 + 1.5*Randomizer.nextDouble());
+            }
+            double logP = model.calculateTreeLogLikelihood(tree);
+            assertEquals(fullModel.calculateTreeLogLikelihood(tree), logP, 1e-12);
+            assertEquals(!isTreeChange && logP != Double.NEGATIVE_INFINITY, model.hasCompiledTree());
+            if (model.hasCompiledTree()) {
+                compiledCount++;
+            }
+            // states outside the prior are always rejected as in an MCMC run
+            if (logP == Double.NEGATIVE_INFINITY || Randomizer.nextBoolean()) {
+                tree.restore();
+                model.restore();
+                birthRate.setValue(storedBirthRate);
+            }
+            tree.setEverythingDirty(false);
+        }
+        assertTrue(compiledCount > 0);
+        assertEquals(fullModel.calculateTreeLogLikelihood(tree), model.calculateTreeLogLikelihood(tree), 1e-12);
+    }
+
+    @Test
+    public void testBatchLikelihood() throws Exception {
+
+        SRTree tree = SRTreeTest.createTree();
+        RealParameter birthRate = new RealParameter("1.5");
+        RealParameter deathRate = new RealParameter("0.5");
+        RealParameter samplingRate = new RealParameter("0.1");
+        RealParameter rho = new RealParameter("0.5");
+        SRangesBirthDeathModel model = createModel(tree, birthRate);
+        model.setInputValue("deathRate", deathRate);
+        model.setInputValue("samplingRate", samplingRate);
+        model.setInputValue("rho", rho);
+        model.initAndValidate();
+
+        // the batch includes a setting with rho = 0 and an invalid setting with a negative sampling rate
+        double[] lambdas = {1.5, 1.0, 2.5, 0.75, 1.5};
+        double[] mus = {0.5, 0.2, 1.0, 0.5, 0.5};
+        double[] psis = {0.1, 0.3, 0.05, -0.1, 0.2};
+        double[] rhos = {0.5, 0.9, 0.1, 0.5, 0.0};
+        double[] logPosts = model.calculateTreeLogLikelihoods(tree, lambdas, mus, psis, rhos);
+        assertEquals(-33.29951335631795, logPosts[0], 1e-12);
+
+        for (int k=0; k<lambdas.length; k++) {
+            birthRate.setValue(lambdas[k]);
+            deathRate.setValue(mus[k]);
+            samplingRate.setValue(psis[k]);
+            rho.setValue(rhos[k]);
+            assertEquals(model.calculateTreeLogLikelihood(tree), logPosts[k], 1e-12);
+        }
+    }
+
+    @Test
+    public void testParallelLikelihood() throws Exception {
+
+        SRTree tree = SRTreeTest.createTree();
+        SRangesBirthDeathModel model = createModel(tree, new RealParameter("1.5"));
+        model.setInputValue("parallel", true);
+        model.setInputValue("parallelThreshold", 0);
+        model.initAndValidate();
+
+        assertEquals(-33.29951335631795, model.calculateTreeLogLikelihood(tree), 1e-12);
+    }
+
+    @Test
+    public void testParallelLikelihoodLargeTree() throws Exception {
+        Randomizer.setSeed(127);
+        SimulatedSRangeTree tree = new SimulatedSRangeTree();
+        tree.setInputValue("nodetype", SRNode.class.getName());
+        tree.setInputValue("origin", new RealParameter("16.0"));
+        tree.setInputValue("birthRate", new RealParameter("1.0"));
+        tree.setInputValue("deathRate", new RealParameter("0.5"));
+        tree.setInputValue("samplingRate", new RealParameter("0.4"));
+        tree.setInputValue("removalProbability", new RealParameter("0.0"));
+        tree.setInputValue("rho", new RealParameter("0.5"));
+        tree.setInputValue("minSampleCount", 5000);
+        tree.initAndValidate();
+        // enough nodes and ranges for the tasks to fork several times
+        assertTrue(tree.getNodeCount() + tree.getSRanges().size() > 8*SRangesBirthDeathModel.PARALLEL_CHUNK_SIZE);
+
+        SRangesBirthDeathModel model = new SRangesBirthDeathModel();
+        model.setInputValue("tree", tree);
+        model.setInputValue("origin", new RealParameter("16.0"));
+        model.setInputValue("birthRate", new RealParameter("1.0"));
+        model.setInputValue("deathRate", new RealParameter("0.5"));
+        model.setInputValue("samplingRate", new RealParameter("0.4"));
+        model.setInputValue("removalProbability", new RealParameter("0.0"));
+        model.setInputValue("rho", new RealParameter("0.5"));
+        model.initAndValidate();
+        double sequential = model.calculateTreeLogLikelihood(tree);
+
+        model.setInputValue("parallel", true);
+        model.setInputValue("parallelThreshold", 0);
+        ForkJoinPool singleThreadPool = new ForkJoinPool(1);
+        ForkJoinPool fourThreadPool = new ForkJoinPool(4);
+        try {
+            model.setForkJoinPool(singleThreadPool);
+            double singleThread = model.calculateTreeLogLikelihood(tree);
+            model.setForkJoinPool(fourThreadPool);
+            double fourThreads = model.calculateTreeLogLikelihood(tree);
+
+            assertEquals(sequential, singleThread, 1e-12*Math.abs(sequential));
+            assertEquals(Double.doubleToLongBits(singleThread), Double.doubleToLongBits(fourThreads));
+        } finally {
+            singleThreadPool.shutdown();
+            fourThreadPool.shutdown();
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package test.sranges;
+
+import beast.core.State;
+import beast.evolution.tree.SRTree;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import operators.LeftRightChildSwap;
+import operators.SRTreeOperator;
+import operators.SRWilsonBalding;
+import org.junit.Test;
+import sranges.PerformanceLogger;
+import test.beast.evolution.tree.SRTreeTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Tests for the columns and the per log line counts of PerformanceLogger.
+ */
+public class PerformanceLoggerTest extends TestCase {
+
+    private static String[] print(PerformanceLogger logger, int sample) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        if (sample < 0) {
+            logger.init(out);
+        } else {
+            logger.log(sample, out);
+        }
+        out.flush();
+        return bytes.toString().split("\t");
+    }
+
+    @Test
+    public void testLog() throws Exception {
+        Randomizer.setSeed(127);
+        SRTree tree = SRTreeTest.createTree();
+        tree.setID("tree");
+        State state = new State();
+        state.setInputValue("stateNode", tree);
+        state.initAndValidate();
+        SRTreeOperator wilsonBalding = new SRWilsonBalding();
+        wilsonBalding.setID("WB");
+        SRTreeOperator childSwap = new LeftRightChildSwap();
+        childSwap.setID("swap");
+        for (SRTreeOperator operator : Arrays.asList(wilsonBalding, childSwap)) {
+            operator.setInputValue("tree", tree);
+            operator.initAndValidate();
+        }
+
+        PerformanceLogger logger = new PerformanceLogger();
+        logger.setInputValue("operator", wilsonBalding);
+        logger.setInputValue("operator", childSwap);
+        logger.setInputValue("tree", tree);
+        logger.initAndValidate();
+
+        String[] header = print(logger, -1);
+        assertTrue(Arrays.equals(new String[] {
+                "WB.calls", "WB.failures", "WB.accepts", "WB.rejections", "WB.iterations", "WB.nsPerCall",
+                "swap.calls", "swap.failures", "swap.accepts", "swap.rejections", "swap.iterations", "swap.nsPerCall",
+                "tree.store.calls", "tree.store.nsPerCall", "tree.restore.calls", "tree.restore.nsPerCall"}, header));
+
+        // every log line holds the counts since the previous one, a failed proposal is neither accepted nor rejected
+        for (int line=0; line<3; line++) {
+            int stepCount = 100*(line + 1);
+            int failureCount = 0, acceptCount = 0, rejectionCount = 0;
+            for (int step=0; step<stepCount; step++) {
+                state.store(step);
+                if (wilsonBalding.proposal() == Double.NEGATIVE_INFINITY) {
+                    failureCount++;
+                    wilsonBalding.reject(-2);
+                    tree.restore();
+                } else if (Randomizer.nextBoolean()) {
+                    acceptCount++;
+                    wilsonBalding.accept();
+                } else {
+                    rejectionCount++;
+                    wilsonBalding.reject(0);
+                    tree.restore();
+                }
+                tree.setEverythingDirty(false);
+            }
+            String[] values = print(logger, stepCount);
+            assertEquals(header.length, values.length);
+            assertEquals(stepCount, Long.parseLong(values[0]));
+            assertEquals(failureCount, Long.parseLong(values[1]));
+            assertEquals(acceptCount, Long.parseLong(values[2]));
+            assertEquals(rejectionCount, Long.parseLong(values[3]));
+            assertEquals(0, Long.parseLong(values[6]));
+            assertEquals(stepCount, Long.parseLong(values[12]));
+            assertEquals(failureCount + rejectionCount, Long.parseLong(values[14]));
+        }
+    }
+
+}